@@ -0,0 +1,136 @@
+package dns.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dns.DnsHeader;
+import dns.DnsQueryTemplate;
+import dns.DnsQuestion;
+import dns.DnsRecordCursor;
+import dns.DnsResponse;
+
+/**
+ * Encoding and decoding cost of a single message, without any I/O.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+	@Param({ "smallA", "manyA", "mxWithAdditionals" })
+	public String packetShape;
+
+	private ByteBuffer packet;
+	private DnsHeader header;
+	private DnsRecordCursor cursor;
+	private StringBuilder line;
+	private ByteBuffer sendBuffer;
+	private int id;
+
+	@Setup
+	public void setUp() {
+		switch (packetShape) {
+		case "manyA":
+			packet = Packets.manyA();
+			break;
+		case "mxWithAdditionals":
+			packet = Packets.mxWithAdditionals();
+			break;
+		default:
+			packet = Packets.smallA();
+			break;
+		}
+		header = new DnsHeader();
+		cursor = new DnsRecordCursor();
+		line = new StringBuilder(128);
+		sendBuffer = ByteBuffer.allocateDirect(DnsQueryTemplate.MAX_SIZE);
+	}
+
+	@Benchmark
+	public byte[] encodeQuestion() {
+		return new DnsQuestion("www.example.com", "A").getQuestion();
+	}
+
+	// A whole query from its cached template, as the UDP transport sends it.
+	@Benchmark
+	public ByteBuffer encodeQueryTemplate() {
+		sendBuffer.clear();
+		return DnsQueryTemplate.of("www.example.com", 1, true, 1232).writeTo(sendBuffer, ++id & 0xffff).flip();
+	}
+
+	@Benchmark
+	public byte[] encodeHeader() {
+		return new DnsHeader((short) 0x1234, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 1, (byte) 0, (byte) 0,
+				(byte) 0, (short) 1, (short) 0, (short) 0, (short) 0).getHeader();
+	}
+
+	@Benchmark
+	public int parseHeader() {
+		header.parseHeader(packet);
+		return header.getANCOUNT();
+	}
+
+	// Parse the response and visit every record of every section.
+	@Benchmark
+	public long decode() {
+		DnsResponse response = new DnsResponse(packet);
+		return walk(response.answers(cursor)) + walk(response.authorities(cursor))
+				+ walk(response.additionals(cursor));
+	}
+
+	// As decode, but also format each record the way the client prints it.
+	@Benchmark
+	public int decodeAndFormat() {
+		DnsResponse response = new DnsResponse(packet);
+		int length = 0;
+		response.answers(cursor);
+		while (cursor.next()) {
+			line.setLength(0);
+			cursor.appendOutput(false, line);
+			length += line.length();
+		}
+		return length;
+	}
+
+	// Decode the owner name of every record, and the name in the data of MX
+	// records, as the iterative resolver reads referrals.
+	@Benchmark
+	public int decodeNames() {
+		DnsResponse response = new DnsResponse(packet);
+		return names(response.answers(cursor)) + names(response.additionals(cursor));
+	}
+
+	private static int names(DnsRecordCursor cursor) {
+		int length = 0;
+		while (cursor.next()) {
+			length += cursor.getName().length();
+			if (cursor.getType() == DnsRecordCursor.TYPE_MX) {
+				length += cursor.getRDataName().length();
+			}
+		}
+		return length;
+	}
+
+	private static long walk(DnsRecordCursor cursor) {
+		long sum = 0;
+		while (cursor.next()) {
+			sum += cursor.getTTL() + cursor.getRDataLength();
+		}
+		return sum;
+	}
+}
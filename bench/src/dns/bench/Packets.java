@@ -0,0 +1,102 @@
+package dns.bench;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Response packets shaped like real resolver traffic, with names compressed
+ * the way servers compress them: every owner name and every name in record
+ * data is a pointer, or a label followed by a pointer, into an earlier name.
+ */
+final class Packets {
+
+	private Packets() {
+	}
+
+	// www.example.com A, with 2 answers. The typical small response.
+	static ByteBuffer smallA() {
+		return aRecords(2);
+	}
+
+	// www.example.com A, with 25 answers, as returned for large pools.
+	static ByteBuffer manyA() {
+		return aRecords(25);
+	}
+
+	/**
+	 * example.com MX, with 10 MX answers, 4 NS records in the authority section
+	 * and an A record for every MX host in the additional section.
+	 */
+	static ByteBuffer mxWithAdditionals() {
+		ByteBuffer packet = ByteBuffer.allocate(1024);
+		header(packet, 10, 4, 10);
+		question(packet, new String[] { "example", "com" }, 15);
+		int[] hostOffsets = new int[10];
+		for (int i = 0; i < 10; i++) {
+			recordHeader(packet, 0xC00C, 15, 3600);
+			packet.putShort((short) 8);
+			packet.putShort((short) (10 * (i + 1)));
+			hostOffsets[i] = packet.position();
+			label(packet, "mx" + i);
+			packet.putShort((short) 0xC00C);
+		}
+		for (int i = 0; i < 4; i++) {
+			recordHeader(packet, 0xC00C, 2, 86400);
+			packet.putShort((short) 6);
+			label(packet, "ns" + i);
+			packet.putShort((short) 0xC00C);
+		}
+		for (int i = 0; i < 10; i++) {
+			recordHeader(packet, 0xC000 | hostOffsets[i], 1, 3600);
+			packet.putShort((short) 4);
+			packet.putInt(0xC0000200 | i);
+		}
+		packet.flip();
+		return packet;
+	}
+
+	private static ByteBuffer aRecords(int count) {
+		ByteBuffer packet = ByteBuffer.allocate(512);
+		header(packet, count, 0, 0);
+		question(packet, new String[] { "www", "example", "com" }, 1);
+		for (int i = 0; i < count; i++) {
+			recordHeader(packet, 0xC00C, 1, 300);
+			packet.putShort((short) 4);
+			packet.putInt(0x5DB8D800 | i);
+		}
+		packet.flip();
+		return packet;
+	}
+
+	private static void header(ByteBuffer packet, int ancount, int nscount, int arcount) {
+		packet.putShort((short) 0x1234);
+		packet.put((byte) 0x81);
+		packet.put((byte) 0x80);
+		packet.putShort((short) 1);
+		packet.putShort((short) ancount);
+		packet.putShort((short) nscount);
+		packet.putShort((short) arcount);
+	}
+
+	private static void question(ByteBuffer packet, String[] labels, int qtype) {
+		for (String label : labels) {
+			label(packet, label);
+		}
+		packet.put((byte) 0);
+		packet.putShort((short) qtype);
+		packet.putShort((short) 1);
+	}
+
+	private static void recordHeader(ByteBuffer packet, int namePointer, int type, int ttl) {
+		packet.putShort((short) namePointer);
+		packet.putShort((short) type);
+		packet.putShort((short) 1);
+		packet.putInt(ttl);
+	}
+
+	private static void label(ByteBuffer packet, String label) {
+		packet.put((byte) label.length());
+		for (int i = 0; i < label.length(); i++) {
+			packet.put((byte) label.charAt(i));
+		}
+	}
+}
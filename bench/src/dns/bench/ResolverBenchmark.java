@@ -0,0 +1,78 @@
+package dns.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dns.DnsCache;
+import dns.DnsNegativeCache;
+import dns.DnsResolver;
+import dns.DnsResponse;
+import dns.DnsStubServer;
+
+/**
+ * End-to-end queries through DnsResolver against an in-process stub server on
+ * the loopback interface. Caching is disabled so every operation is a real
+ * round trip.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResolverBenchmark {
+	private static final int BATCH = 256;
+
+	private DnsStubServer server;
+	private DnsResolver resolver;
+	private CompletableFuture<?>[] batch;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		server = new DnsStubServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+		resolver = new DnsResolver(server.getAddress(), new DnsCache(0), new DnsNegativeCache(0));
+		resolver.setTimeout(1000);
+		batch = new CompletableFuture<?>[BATCH];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		resolver.close();
+		server.close();
+	}
+
+	// The latency of one query at a time.
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public DnsResponse latency() {
+		return resolver.resolve("www.example.com", "A").join();
+	}
+
+	// Queries per second with BATCH queries in flight at once.
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BATCH)
+	public void throughput() {
+		for (int i = 0; i < BATCH; i++) {
+			batch[i] = resolver.resolve("www.example.com", "A");
+		}
+		CompletableFuture.allOf(batch).join();
+	}
+}
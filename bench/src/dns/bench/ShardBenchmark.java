@@ -0,0 +1,105 @@
+package dns.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dns.DnsCache;
+import dns.DnsForwarder;
+import dns.DnsNegativeCache;
+import dns.DnsResolver;
+import dns.DnsStubServer;
+
+/**
+ * Queries per second over the loopback interface as the number of shards
+ * grows. {@code resolver} sends through a sharded DnsResolver, with caching
+ * disabled, to a stub server answering on as many threads; {@code forwarder}
+ * sends the same queries to a DnsForwarder with as many shards, which answers
+ * them from its cache. Both only scale while there are cores to spare.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ShardBenchmark {
+	private static final int BATCH = 1024;
+	private static final int NAMES = 256;
+
+	@Param({ "1", "2", "4", "8" })
+	public int shards;
+
+	private final String[] names = new String[NAMES];
+	private DnsStubServer server;
+	private DnsResolver resolver;
+	private DnsResolver upstream;
+	private DnsForwarder forwarder;
+	private DnsResolver client;
+	private CompletableFuture<?>[] batch;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		for (int i = 0; i < NAMES; i++) {
+			names[i] = "host" + i + ".example.com";
+		}
+		InetSocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+		server = new DnsStubServer(loopback, 2, shards);
+		resolver = new DnsResolver(server.getAddress(), new DnsCache(0), new DnsNegativeCache(0));
+		resolver.setShards(shards);
+		resolver.setTimeout(1000);
+
+		upstream = new DnsResolver(server.getAddress());
+		forwarder = new DnsForwarder(upstream, loopback, shards);
+		client = new DnsResolver(forwarder.getAddress(), new DnsCache(0), new DnsNegativeCache(0));
+		client.setShards(shards);
+		client.setTimeout(1000);
+		batch = new CompletableFuture<?>[BATCH];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		client.close();
+		forwarder.close();
+		upstream.close();
+		resolver.close();
+		server.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void resolver() {
+		send(resolver);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void forwarder() {
+		send(client);
+	}
+
+	// BATCH queries in flight at once, spread over the names.
+	private void send(DnsResolver to) {
+		for (int i = 0; i < BATCH; i++) {
+			batch[i] = to.resolve(names[i & (NAMES - 1)], "A");
+		}
+		CompletableFuture.allOf(batch).join();
+	}
+}
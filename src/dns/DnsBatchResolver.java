@@ -0,0 +1,130 @@
+package dns;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves a stream of names with a bounded number of queries in flight. Each
+ * input line holds a name and, optionally, a request type; blank lines and
+ * lines starting with # are ignored. Results are written as soon as each query
+ * completes, so they come out in completion order, one line per record:
+ *
+ * <pre>
+ * www.example.com	IP	93.184.216.34	300	nonauth
+ * missing.example.com	NOTFOUND
+ * slow.example.com	ERROR	Timeout occurred
+ * </pre>
+ *
+ * Input is only read when a slot is free, so memory use does not depend on
+ * the size of the input.
+ */
+public class DnsBatchResolver {
+	public static final int DEFAULT_CONCURRENCY = 100;
+
+	private final DnsResolver resolver;
+	private final int concurrency;
+	private final String defaultType;
+	private final LongAdder resolved = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	/**
+	 * @param resolver    : the resolver the queries are sent through.
+	 * @param concurrency : the maximum number of queries in flight.
+	 * @param defaultType : the request type of lines that do not name one.
+	 */
+	public DnsBatchResolver(DnsResolver resolver, int concurrency, String defaultType) {
+		this.resolver = resolver;
+		this.concurrency = concurrency;
+		this.defaultType = defaultType;
+	}
+
+	/**
+	 * Resolve every name read from the input and write the results to the
+	 * output. Returns once the input is exhausted and every query has
+	 * completed.
+	 */
+	public void run(BufferedReader in, PrintStream out) throws IOException, InterruptedException {
+		Semaphore permits = new Semaphore(concurrency);
+		// A single writer keeps the result lines whole and keeps slow output off
+		// the transport's event loop.
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				String name = fields[0];
+				String qtype = fields.length > 1 ? fields[1].toUpperCase(Locale.ROOT) : defaultType;
+				if (DnsQuestion.getTypeCode(qtype) == 0) {
+					failed.increment();
+					out.println(name + "\tERROR\tUnsupported request type " + qtype);
+					continue;
+				}
+
+				permits.acquire();
+				resolver.resolve(name, qtype).whenCompleteAsync((response, error) -> {
+					try {
+						out.print(format(name, response, error));
+					} finally {
+						permits.release();
+					}
+				}, writer);
+			}
+			permits.acquire(concurrency);
+		} finally {
+			writer.shutdown();
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+			out.flush();
+		}
+	}
+
+	public long getResolved() {
+		return resolved.sum();
+	}
+
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	private String format(String name, DnsResponse response, Throwable error) {
+		StringBuilder result = new StringBuilder(128);
+		if (error != null) {
+			failed.increment();
+			Throwable cause = error.getCause() != null ? error.getCause() : error;
+			String message = cause instanceof SocketTimeoutException ? "Timeout occurred"
+					: String.valueOf(cause.getMessage()).trim();
+			return result.append(name).append("\tERROR\t").append(message).append('\n').toString();
+		}
+		resolved.increment();
+		DnsHeader header = response.getHeader();
+		boolean auth = header.getAA() == 1;
+		if (header.getRCODE() == 0) {
+			DnsRecordCursor cursor = response.answers();
+			while (cursor.next()) {
+				int start = result.length();
+				result.append(name).append('\t');
+				if (cursor.appendOutput(auth, result)) {
+					result.append('\n');
+				} else {
+					result.setLength(start);
+				}
+			}
+		}
+		if (result.length() == 0) {
+			result.append(name).append(header.getRCODE() == 0 || header.getRCODE() == 3 ? "\tNOTFOUND"
+					: "\tERROR\tRCODE " + header.getRCODE()).append('\n');
+		}
+		return result.toString();
+	}
+}
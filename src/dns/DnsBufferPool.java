@@ -0,0 +1,56 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small lock-free pool of equally sized buffers. Buffers are kept in a fixed
+ * array of slots and taken and returned with compare-and-set, so acquiring
+ * and releasing a pooled buffer allocates nothing. When the pool is empty a
+ * new buffer is allocated; when it is full a released buffer is left to the
+ * garbage collector.
+ */
+public class DnsBufferPool {
+	private final int bufferSize;
+	private final boolean direct;
+	private final AtomicReferenceArray<ByteBuffer> slots;
+
+	/**
+	 * @param bufferSize : the capacity of every buffer.
+	 * @param direct     : whether to allocate direct buffers, which the
+	 *                   channels can read into without an extra copy.
+	 * @param maxPooled  : the number of idle buffers to keep.
+	 */
+	public DnsBufferPool(int bufferSize, boolean direct, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.slots = new AtomicReferenceArray<>(maxPooled);
+	}
+
+	// A cleared buffer, taken from the pool if one is idle.
+	public ByteBuffer acquire() {
+		for (int i = 0; i < slots.length(); i++) {
+			ByteBuffer buffer = slots.get(i);
+			if (buffer != null && slots.compareAndSet(i, buffer, null)) {
+				buffer.clear();
+				return buffer;
+			}
+		}
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+			return;
+		}
+		for (int i = 0; i < slots.length(); i++) {
+			if (slots.get(i) == null && slots.compareAndSet(i, null, buffer)) {
+				return;
+			}
+		}
+	}
+
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+}
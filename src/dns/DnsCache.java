@@ -0,0 +1,355 @@
+package dns;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-process cache of DNS responses keyed on (name, qtype). An entry lives
+ * for the smallest TTL among the answer records of its response. The cache is
+ * split into independently locked segments, each an LRU list, so threads
+ * looking up different names rarely contend; when a segment is full its least
+ * recently used entry is evicted. The maximum size is shared out exactly
+ * between the segments, and a cache smaller than 16 entries has fewer
+ * segments, so that every segment can hold at least one.
+ *
+ * Responses are not kept as received: their records are packed into a
+ * {@link DnsCompactResponse}, with every name interned in a
+ * {@link DnsNameTable} shared by the whole cache, and a hit rebuilds a packet
+ * from them. A cached response carries the TTLs it was received with, less
+ * the time it has spent in the cache, but not its question's case, its OPT
+ * record or its ID.
+ *
+ * Two settings let the resolver keep hot names from ever blocking on the
+ * network. The prefetch fraction marks the last part of an entry's lifetime in
+ * which a hit should refresh it ahead of time. The stale window keeps entries
+ * past their expiry, in the style of RFC 8767, so they can still be served
+ * while the upstream servers are slow or down; {@link #get(String, int)}
+ * never returns them.
+ */
+public class DnsCache {
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	public static final double DEFAULT_PREFETCH_FRACTION = 0.1;
+	// How long a refresh that has been claimed keeps others from starting one.
+	static final long REFRESH_RETRY = TimeUnit.SECONDS.toNanos(30);
+	private static final int MAX_SEGMENTS = 16;
+
+	private final Segment[] segments;
+	private final DnsNameTable names = new DnsNameTable();
+	private volatile double prefetchFraction = DEFAULT_PREFETCH_FRACTION;
+	private volatile long maxStale;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxSize : the maximum number of cached responses. 0 disables the
+	 *                cache.
+	 */
+	public DnsCache(int maxSize) {
+		int count = Math.min(MAX_SEGMENTS, Integer.highestOneBit(Math.max(maxSize, 1)));
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			// The first segments take the remainder.
+			segments[i] = new Segment(maxSize / count + (i < maxSize % count ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Look up a cached response.
+	 *
+	 * @return the response, or null if there is none or it has expired.
+	 */
+	public DnsResponse get(String name, int qtype) {
+		long now = System.nanoTime();
+		Entry entry = lookup(name, qtype, now);
+		return entry == null || entry.isExpired(now) ? null : entry.response;
+	}
+
+	/**
+	 * Look up a cache entry, fresh or within the stale window. Entries past the
+	 * stale window are removed.
+	 *
+	 * @param now : the current System.nanoTime().
+	 * @return the entry, or null if there is none.
+	 */
+	Entry lookup(String name, int qtype, long now) {
+		DnsQueryKey key = new DnsQueryKey(name, qtype, DnsRecordCursor.CLASS_IN);
+		Segment segment = segmentFor(key);
+		Entry entry = null;
+		segment.lock.lock();
+		try {
+			Slot slot = segment.map.get(key);
+			if (slot != null && slot.isExpired(now) && now - slot.expiry >= maxStale) {
+				segment.map.remove(key);
+				slot.records.release(names);
+				expirations.increment();
+			} else if (slot != null) {
+				// Under the segment lock, so the slot's names cannot be released
+				// while the packet is rebuilt.
+				entry = new Entry(slot.toResponse(name, qtype, names, now), slot);
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+		if (entry == null) {
+			misses.increment();
+		} else if (entry.isExpired(now)) {
+			staleHits.increment();
+		} else {
+			hits.increment();
+		}
+		return entry;
+	}
+
+	/**
+	 * Cache a response for as long as {@link #getTTL(DnsResponse)} allows.
+	 * Responses it rejects are not cached.
+	 */
+	public void put(String name, int qtype, DnsResponse response) {
+		if (segments[0].maxSize == 0) {
+			return;
+		}
+		long ttl = getTTL(response);
+		if (ttl <= 0) {
+			return;
+		}
+		put(name, qtype, response, TimeUnit.SECONDS.toNanos(ttl));
+	}
+
+	/**
+	 * Cache a response for the given time, whatever its TTLs say. Used to
+	 * restore entries from a snapshot with the lifetime they had left.
+	 *
+	 * @param lifetime : how long the entry stays fresh, in ns.
+	 */
+	void put(String name, int qtype, DnsResponse response, long lifetime) {
+		if (segments[0].maxSize == 0) {
+			return;
+		}
+		DnsQueryKey key = new DnsQueryKey(name, qtype, DnsRecordCursor.CLASS_IN);
+		long now = System.nanoTime();
+		long expiry = now + lifetime;
+		Slot slot = new Slot(DnsCompactResponse.from(response, names), now, expiry,
+				expiry - (long) (lifetime * prefetchFraction));
+		Segment segment = segmentFor(key);
+		segment.lock.lock();
+		try {
+			Slot old = segment.map.put(key, slot);
+			if (old != null) {
+				old.records.release(names);
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * Visit every entry, fresh or stale, with its response rebuilt. The
+	 * visitor runs under the lock of the entry's segment, so it should be
+	 * quick.
+	 */
+	void forEach(Visitor visitor) {
+		for (Segment segment : segments) {
+			segment.lock.lock();
+			try {
+				long now = System.nanoTime();
+				for (Map.Entry<DnsQueryKey, Slot> entry : segment.map.entrySet()) {
+					DnsQueryKey key = entry.getKey();
+					Slot slot = entry.getValue();
+					DnsResponse response = slot.toResponse(key.name, key.qtype, names, now);
+					visitor.visit(key.name, key.qtype, response, slot.expiry);
+				}
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.lock.lock();
+			try {
+				for (Slot slot : segment.map.values()) {
+					slot.records.release(names);
+				}
+				segment.map.clear();
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			segment.lock.lock();
+			try {
+				size += segment.map.size();
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @param prefetchFraction : the fraction of an entry's TTL, counted back
+	 *                         from its expiry, in which a hit schedules a
+	 *                         refresh. 0 disables prefetching.
+	 */
+	public void setPrefetchFraction(double prefetchFraction) {
+		this.prefetchFraction = Math.max(0, Math.min(prefetchFraction, 1));
+	}
+
+	/**
+	 * @param maxStale : how long to keep entries past their expiry so they can
+	 *                 be served stale, in seconds. 0 disables serve-stale.
+	 */
+	public void setMaxStale(int maxStale) {
+		this.maxStale = TimeUnit.SECONDS.toNanos(Math.max(maxStale, 0));
+	}
+
+	// The number of distinct name suffixes held by the cached records.
+	public int getNameCount() {
+		return names.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	// Lookups that found an expired entry within the stale window.
+	public long getStaleHits() {
+		return staleHits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getExpirations() {
+		return expirations.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * How long a response may be cached: the smallest TTL of its answers.
+	 * Failed responses and responses without answers are not cached.
+	 *
+	 * @return the TTL in seconds, or 0 or less if the response must not be
+	 *         cached.
+	 */
+	protected long getTTL(DnsResponse response) {
+		if (response.getHeader().getRCODE() != 0) {
+			return -1;
+		}
+		return minAnswerTTL(response);
+	}
+
+	// -1 if the response has no answers.
+	static long minAnswerTTL(DnsResponse response) {
+		long ttl = -1;
+		DnsRecordCursor cursor = response.answers();
+		while (cursor.next()) {
+			if (ttl < 0 || cursor.getTTL() < ttl) {
+				ttl = cursor.getTTL();
+			}
+		}
+		return ttl;
+	}
+
+	private Segment segmentFor(DnsQueryKey key) {
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+	}
+
+	private final class Segment {
+		final ReentrantLock lock = new ReentrantLock();
+		final int maxSize;
+		final LinkedHashMap<DnsQueryKey, Slot> map;
+
+		Segment(int maxSize) {
+			this.maxSize = maxSize;
+			this.map = new LinkedHashMap<DnsQueryKey, Slot>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<DnsQueryKey, Slot> eldest) {
+					if (size() > Segment.this.maxSize) {
+						eldest.getValue().records.release(names);
+						evictions.increment();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+	}
+
+	interface Visitor {
+		/**
+		 * @param expiry : when the entry expires, in System.nanoTime() terms.
+		 */
+		void visit(String name, int qtype, DnsResponse response, long expiry);
+	}
+
+	// What a segment holds for one question.
+	private static final class Slot {
+		private static final AtomicLongFieldUpdater<Slot> NEXT_REFRESH = AtomicLongFieldUpdater
+				.newUpdater(Slot.class, "nextRefresh");
+
+		final DnsCompactResponse records;
+		final long stored;
+		final long expiry;
+		private volatile long nextRefresh;
+
+		Slot(DnsCompactResponse records, long stored, long expiry, long nextRefresh) {
+			this.records = records;
+			this.stored = stored;
+			this.expiry = expiry;
+			this.nextRefresh = nextRefresh;
+		}
+
+		boolean isExpired(long now) {
+			return expiry - now <= 0;
+		}
+
+		// The response with its TTLs counted down to now, or stale ones.
+		DnsResponse toResponse(String name, int qtype, DnsNameTable names, long now) {
+			return records.toResponse(name, qtype, names, TimeUnit.NANOSECONDS.toSeconds(now - stored),
+					isExpired(now));
+		}
+	}
+
+	// A hit: the rebuilt response and the slot it came from.
+	static final class Entry {
+		final DnsResponse response;
+		private final Slot slot;
+
+		Entry(DnsResponse response, Slot slot) {
+			this.response = response;
+			this.slot = slot;
+		}
+
+		boolean isExpired(long now) {
+			return slot.isExpired(now);
+		}
+
+		/**
+		 * Claim the refresh of this entry once it is due. Only one caller wins
+		 * the claim; if the refresh fails, the entry is due again REFRESH_RETRY
+		 * later.
+		 */
+		boolean claimRefresh(long now) {
+			long next = slot.nextRefresh;
+			return next - now <= 0 && Slot.NEXT_REFRESH.compareAndSet(slot, next, now + REFRESH_RETRY);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package dns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves a DnsCache to a file and restores it, so that a restarted resolver
+ * starts warm. The file is a sequence of wire-format responses, each preceded
+ * by the absolute time, in ms since the epoch, at which it expires, its
+ * question type and name, and its length:
+ *
+ * <pre>
+ * "DNSC" | version (4) | count (4)
+ * { expiry (8) | qtype (2) | name length (1) | name | length (2) | response }*
+ * </pre>
+ *
+ * Loading maps the file and hands each response to the cache straight from
+ * the mapping; entries that have expired since they were saved are skipped,
+ * and the others live for the time they had left. Saving writes a temporary
+ * file of its own next to the target and renames it over the target, so a
+ * crash never leaves half a snapshot behind, and two saves to the same target
+ * never write the same file.
+ */
+public class DnsCacheSnapshot {
+	private static final int MAGIC = 0x444E5343;
+	private static final int VERSION = 1;
+
+	/**
+	 * Write every entry of the cache that has not expired.
+	 *
+	 * @return the number of entries written.
+	 */
+	public static int save(DnsCache cache, Path file) throws IOException {
+		Writer writer = new Writer();
+		cache.forEach(writer);
+		ByteBuffer data = writer.out.putInt(8, writer.count).flip();
+
+		Path target = file.toAbsolutePath();
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, data.remaining());
+				map.put(data);
+				map.force();
+			}
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		return writer.count;
+	}
+
+	/**
+	 * Restore the entries of a snapshot that have not expired. A missing file
+	 * restores nothing.
+	 *
+	 * @return the number of entries restored.
+	 * @throws IOException if the file cannot be read or is not a snapshot.
+	 */
+	public static int load(DnsCache cache, Path file) throws IOException {
+		MappedByteBuffer map;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (NoSuchFileException e) {
+			return 0;
+		}
+		long nowMillis = System.currentTimeMillis();
+		int restored = 0;
+		try {
+			if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+				throw new IOException("\nERROR\t" + file + " is not a cache snapshot");
+			}
+			int count = map.getInt();
+			byte[] name = new byte[255];
+			for (int i = 0; i < count; i++) {
+				long remaining = map.getLong() - nowMillis;
+				int qtype = map.getShort() & 0xffff;
+				int nameLength = map.get() & 0xff;
+				map.get(name, 0, nameLength);
+				int length = map.getShort() & 0xffff;
+				ByteBuffer packet = map.slice(map.position(), length);
+				map.position(map.position() + length);
+				if (remaining > 0) {
+					cache.put(new String(name, 0, nameLength, StandardCharsets.US_ASCII), qtype,
+							new DnsResponse(packet), TimeUnit.MILLISECONDS.toNanos(remaining));
+					restored++;
+				}
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("\nERROR\tThe cache snapshot " + file + " is corrupt", e);
+		}
+		return restored;
+	}
+
+	// Serializes the entries of a cache, skipping those that have expired.
+	private static final class Writer implements DnsCache.Visitor {
+		final long nowNanos = System.nanoTime();
+		final long nowMillis = System.currentTimeMillis();
+		ByteBuffer out = ByteBuffer.allocate(64 * 1024).putInt(MAGIC).putInt(VERSION).putInt(0);
+		int count;
+
+		@Override
+		public void visit(String name, int qtype, DnsResponse response, long expiry) {
+			if (expiry - nowNanos <= 0) {
+				return;
+			}
+			ByteBuffer packet = response.getData();
+			int length = 8 + 2 + 1 + name.length() + 2 + packet.limit();
+			if (out.remaining() < length) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length));
+				out = grown.put(out.flip());
+			}
+			out.putLong(nowMillis + TimeUnit.NANOSECONDS.toMillis(expiry - nowNanos));
+			out.putShort((short) qtype).put((byte) name.length());
+			for (int i = 0; i < name.length(); i++) {
+				out.put((byte) name.charAt(i));
+			}
+			out.putShort((short) packet.limit()).put(packet.duplicate().position(0));
+			count++;
+		}
+	}
+}
@@ -1,9 +1,18 @@
 package dns;
 
-import java.util.*;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.net.*;
-import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 public class DnsClient {
 
@@ -11,51 +20,73 @@ public class DnsClient {
 	private static final int DEFAULT_MAX_RETRIES = 3;
 	private static final String DEFAULT_PORT = "53";
 	private static final String DEFAULT_REQUEST_TYPE = "A";
-	private static final int MAX_DNS_PACKET_SIZE = 512;
 
 	private int timeout;
 	private int maxRetries;
 	private String port;
 	private String requestType;
 	private String server;
-	private byte[] serverAddress = new byte[4];
 	private String name;
+	private String batchFile;
+	private int concurrency;
+	private boolean iterative;
+	private boolean printMetrics;
+	private String snapshotFile;
+	private String zoneFile;
+	private String listen;
 
 	public DnsClient() {
 		timeout = DEFAULT_TIMEOUT;
 		maxRetries = DEFAULT_MAX_RETRIES;
 		port = DEFAULT_PORT;
 		requestType = DEFAULT_REQUEST_TYPE;
+		concurrency = DnsBatchResolver.DEFAULT_CONCURRENCY;
 	}
 
 	/**
 	 * In the main class, first we parse the arguments from the command line, then
-	 * we create our first DNS request.
+	 * we create our first DNS request, or resolve the whole batch file if one was
+	 * given.
 	 * 
 	 * @param args : the command line arguments
 	 */
 	public static void main(String[] args) {
 		DnsClient dnsClient = new DnsClient();
 		dnsClient.getCmdArguments(args);
-		dnsClient.createDnsRequest(0);
+		if (dnsClient.listen != null) {
+			dnsClient.runForwarder();
+		} else if (dnsClient.batchFile != null) {
+			dnsClient.createBatchRequest();
+		} else {
+			dnsClient.createDnsRequest(0);
+		}
 	}
 
 	/**
 	 * If the command line arguments have incorrect syntax, or the server ID and
-	 * domain name are missing, we throw an IllegalArgumentException
+	 * domain name (or batch file) are missing, we throw an
+	 * IllegalArgumentException
 	 * 
 	 * @param args : the command line arguments
 	 */
 	public void getCmdArguments(String[] args) {
 		try {
 			parseCmdArguments(args);
-			if (server == null || name == null) {
+			if (iterative && server == null && name == null && batchFile == null) {
+				// Without @server, the name is the last argument.
+				int last = args.length - 1;
+				if (last >= 0 && !args[last].startsWith("-")
+						&& (last == 0 || !args[last - 1].matches("-[trpfcszql]"))) {
+					name = args[last];
+				}
+			}
+			if ((server == null && !iterative) || (name == null && batchFile == null && listen == null)) {
 				throw new IllegalArgumentException(
 						"\nERROR\tIncorrect input syntax: server IP address or domain name is missing.");
 			}
 		} catch (Exception e) {
 			throw new IllegalArgumentException(
-					"\nERROR\tIncorrect input syntax: Please use the following Syntax: [-t timeout] [-r max-retries] [-p port] [-mx|-ns] @server name.");
+					"\nERROR\tIncorrect input syntax: Please use the following Syntax: [-t timeout] [-r max-retries] [-p port] [-mx|-ns|-q type] [-f file|- [-c concurrency]] [-i] [-m] [-s snapshot-file] [-z zone-file] [-l [address:]port] @server[,server...] [name].");
 		}
 	}
 
@@ -67,115 +98,228 @@ public class DnsClient {
 				maxRetries = Integer.parseInt(args[i + 1]);
 			} else if (args[i].equals("-p")) {
 				port = args[i + 1];
+			} else if (args[i].equals("-f")) {
+				batchFile = args[i + 1];
+			} else if (args[i].equals("-c")) {
+				concurrency = Integer.parseInt(args[i + 1]);
+				if (concurrency <= 0) {
+					throw new IllegalArgumentException("\nERROR\tThe concurrency must be at least 1");
+				}
+			} else if (args[i].equals("-i")) {
+				iterative = true;
+			} else if (args[i].equals("-m")) {
+				printMetrics = true;
+			} else if (args[i].equals("-s")) {
+				snapshotFile = args[i + 1];
+			} else if (args[i].equals("-z")) {
+				zoneFile = args[i + 1];
+			} else if (args[i].equals("-l")) {
+				listen = args[i + 1];
 			} else if (args[i].equals("-mx")) {
-				if (requestType.equals(DEFAULT_REQUEST_TYPE))
-					requestType = "MX";
-				else
-					throw new IllegalArgumentException(
-							"\nERROR\tIncorrect input syntax: cannot have both -mx and -ns flags in the arguments");
+				setRequestType("MX");
 			} else if (args[i].equals("-ns")) {
-				if (requestType.equals(DEFAULT_REQUEST_TYPE))
-					requestType = "NS";
-				else
-					throw new IllegalArgumentException(
-							"\nERROR\tIncorrect input syntax: cannot have both -mx and -ns flags in the arguments");
+				setRequestType("NS");
+			} else if (args[i].equals("-q")) {
+				String type = args[i + 1].toUpperCase(Locale.ROOT);
+				if (DnsQuestion.getTypeCode(type) == 0) {
+					throw new IllegalArgumentException("\nERROR\tUnsupported request type " + args[i + 1]);
+				}
+				setRequestType(type);
 			} else if (args[i].contains("@")) {
 				server = args[i].substring(1);
-				name = args[i + 1];
+				if (i + 1 < args.length) {
+					name = args[i + 1];
+				}
 			}
 		}
 	}
 
+	// Only one of -mx, -ns and -q can be given.
+	private void setRequestType(String type) {
+		if (requestType.equals(DEFAULT_REQUEST_TYPE))
+			requestType = type;
+		else
+			throw new IllegalArgumentException(
+					"\nERROR\tIncorrect input syntax: cannot have more than one of the -mx, -ns and -q flags");
+	}
+
 	public void createDnsRequest(int retryNum) {
 		System.out.println("DnsClient sending request for " + name);
-		System.out.println("Server: " + server);
+		System.out.println("Server: " + (server != null ? server : "root hints"));
 		System.out.println("Request type: " + requestType);
 		tryDnsRequest(retryNum);
 	}
 
 	/**
-	 * The DNS request is created in the following steps. First, we create a packet
-	 * with the packet header and the question which contains the server name, IP
-	 * address, and the request type. Then we create a UDP socket to send the query
-	 * and get a response. If the timeout occurs, we retransmit the query if we
-	 * still have retries left. Afterwards, the header, question, and the answers
-	 * are parsed based on the response data. Finally, the response output is
-	 * printed.
+	 * Resolve every name in the batch file, or in the standard input if the file
+	 * is "-", and print the results as they arrive. The timeout, retries, port
+	 * and request type options apply to every query.
+	 */
+	public void createBatchRequest() {
+		try (DnsResolver resolver = newResolver();
+				BufferedReader in = batchFile.equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+						: Files.newBufferedReader(Paths.get(batchFile))) {
+			resolver.setTimeout(timeout);
+			resolver.setMaxRetries(maxRetries);
+			DnsBatchResolver batch = new DnsBatchResolver(resolver, concurrency, requestType);
+
+			long startTime = System.nanoTime();
+			batch.run(in, new PrintStream(new FileOutputStream(FileDescriptor.out), false));
+			long endTime = System.nanoTime();
+
+			System.err.println("Resolved " + batch.getResolved() + " names (" + batch.getFailed() + " failed) in "
+					+ (endTime - startTime) / 1e9 + " seconds");
+			dumpMetrics(resolver);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			System.out.println("\nERROR\tFailed to read the batch file " + batchFile);
+		}
+	}
+
+	/**
+	 * The DNS request is handed to a DnsResolver, which builds the packet with
+	 * the header and the question, sends it over its UDP socket and
+	 * retransmits it after an adaptive timeout, backing off on every retry,
+	 * while we still have retries left. This method only waits for the result,
+	 * for at most the timeout times the number of attempts, and prints it.
 	 * 
-	 * Handled exception: 1. Cannot create socket: SocketException. 2. Timeout:
-	 * SocketTimeoutException. 3. Response type and query type don't match:
-	 * RuntimeException. 4. Fail to receive the packet: IOException
+	 * Failures come back in the result: 1. Cannot create socket: IOException.
+	 * 2. Timeout after the last retry: TIMEOUT. 3. Malformed or failed
+	 * response: INVALID_RESPONSE or SERVER_FAILURE. 4. Fail to send or receive
+	 * the packet: NETWORK_ERROR
 	 * 
 	 * @param retryNum : the number of transmitted queries
 	 */
 	public void tryDnsRequest(int retryNum) {
-		InetAddress serverIpAddress = getServerIPAddress();
-		try {
-			DatagramSocket socket = new DatagramSocket();
-			socket.setSoTimeout(timeout);
-
-			Random id = new Random(Short.MAX_VALUE + 1);
-			DnsHeader packetHeader = new DnsHeader((short) id.nextInt(), (byte) 0, (byte) 0, (byte) 0, (byte) 0,
-					(byte) 1, (byte) 0, (byte) 0, (byte) 0, (short) 1, (short) 0, (short) 0, (short) 0);
-			int headerSize = packetHeader.getHeader().length;
-
-			DnsQuestion question = new DnsQuestion(name, requestType);
-			int questionSize = question.getQuestion().length;
-
-			ByteBuffer requestData = ByteBuffer.allocate(headerSize + questionSize);
-			requestData.put(packetHeader.getHeader());
-			requestData.put(question.getQuestion());
-			byte[] responseData = new byte[MAX_DNS_PACKET_SIZE];
-
-			DatagramPacket sentPacket = new DatagramPacket(requestData.array(), requestData.array().length,
-					serverIpAddress, Integer.parseInt(port));
-			DatagramPacket receivedPacket = new DatagramPacket(responseData, responseData.length);
-
-			long startTime = System.currentTimeMillis();
-			socket.send(sentPacket);
-			socket.receive(receivedPacket);
-			long endTime = System.currentTimeMillis();
-			socket.close();
-
-			double deltaTime = (endTime - startTime) / 1000.;
-			System.out.println("Response received after " + deltaTime + " seconds (" + retryNum + " retries)");
-
-			byte[] receivedHeader = Arrays.copyOfRange(receivedPacket.getData(), 0, headerSize);
-			byte[] receivedQuestion = Arrays.copyOfRange(receivedPacket.getData(), headerSize,
-					headerSize + questionSize);
-
-			packetHeader.parseHeader(receivedHeader);
-			question.parseQuestion(receivedQuestion);
-			if (!question.getQTYPE().equals(requestType)) {
-				throw new RuntimeException("\nERROR\tResponse type is not consistent with the original request");
-			}
+		try (DnsResolver resolver = newResolver()) {
+			resolver.setTimeout(timeout);
+			resolver.setMaxRetries(maxRetries - retryNum);
+			Duration budget = Duration.ofMillis((long) timeout * (maxRetries - retryNum + 1));
 
-			DnsResponse response = new DnsResponse(receivedPacket.getData(), packetHeader, headerSize + questionSize);
-			response.printResponseOutput();
-		} catch (SocketException e) {
-			System.out.println("\nERROR\tFailed to create the socket");
-		} catch (SocketTimeoutException e) {
-			System.out.println("\nERROR\tTimeout occurred");
-			if (maxRetries >= ++retryNum) {
-				System.out.println("Retrying the original request (" + (maxRetries - retryNum) + " retries left) ... ");
-				tryDnsRequest(retryNum);
-			} else {
+			long startTime = System.nanoTime();
+			DnsResult result = resolver.resolve(name, requestType, budget);
+			long endTime = System.nanoTime();
+
+			if (result.isSuccess()) {
+				DnsResponse response = result.getResponse();
+				double deltaTime = (endTime - startTime) / 1e9;
+				System.out.println("Response received after " + deltaTime + " seconds ("
+						+ (retryNum + response.getRetries()) + " retries)");
+				response.printResponseOutput();
+			} else if (result.getError().getReason() == DnsException.Reason.TIMEOUT) {
+				System.out.println("\nERROR\tTimeout occurred");
 				System.out.println("\nERROR\tMaximum number of retries " + maxRetries + " exceeded");
-				return;
+			} else {
+				System.out.println(result.getError().getMessage());
 			}
+			dumpMetrics(resolver);
 		} catch (IOException e) {
-			System.out.println("\nERROR\tThe DNS packet wasn't successfully received");
+			System.out.println("\nERROR\tFailed to create the socket");
 		}
+	}
 
+	/**
+	 * With -l, serve the resolver to local clients as a caching forwarder on
+	 * the given port, over UDP and TCP, until the process is stopped. With -m,
+	 * the metrics are written to the standard error every 10 seconds.
+	 */
+	public void runForwarder() {
+		int colon = listen.lastIndexOf(':');
+		InetAddress host = colon < 0 ? InetAddress.getLoopbackAddress()
+				: getServerIPAddress(listen.substring(0, colon));
+		if (host == null) {
+			return;
+		}
+		InetSocketAddress address = new InetSocketAddress(host, Integer.parseInt(listen.substring(colon + 1)));
+		try (DnsResolver resolver = newResolver(); DnsForwarder forwarder = new DnsForwarder(resolver, address)) {
+			resolver.setTimeout(timeout);
+			resolver.setMaxRetries(maxRetries);
+			if (printMetrics) {
+				forwarder.setMetrics(resolver.getMetrics());
+				new DnsTextExporter(System.err, 10000).start(resolver.getMetrics());
+			}
+			System.out.println("DnsClient forwarding on " + forwarder.getAddress().getAddress().getHostAddress() + ":"
+					+ forwarder.getAddress().getPort() + " to " + (server != null ? server : "root hints"));
+			Thread.currentThread().join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			System.out.println("\nERROR\tFailed to listen on " + listen + ": " + e.getMessage());
+		}
+	}
+
+	// With -m, write the resolver's metrics to the standard error.
+	private void dumpMetrics(DnsResolver resolver) {
+		if (printMetrics) {
+			DnsTextExporter exporter = new DnsTextExporter(System.err, 0);
+			exporter.start(resolver.getMetrics());
+			exporter.close();
+		}
+	}
+
+	/**
+	 * With -i, names are resolved iteratively, and the servers given with
+	 * @server are used as the root hints instead of the real root servers.
+	 * With -s, the cache is restored from the snapshot file and saved back to
+	 * it when the resolver is closed. With -z, the names in the zone file are
+	 * answered locally.
+	 */
+	private DnsResolver newResolver() throws IOException {
+		DnsResolver resolver;
+		if (!iterative) {
+			resolver = new DnsResolver(getServerAddresses());
+		} else {
+			resolver = DnsResolver.iterative(server != null ? getServerAddresses()
+					: DnsIterativeResolver.getDefaultRootHints(Integer.parseInt(port)));
+		}
+		if (printMetrics) {
+			resolver.setMetrics(new DnsMetrics());
+		}
+		if (snapshotFile != null) {
+			try {
+				resolver.enableSnapshots(Paths.get(snapshotFile), 0);
+			} catch (IOException e) {
+				// Start with a cold cache; the snapshot is rewritten on close.
+				System.out.println(e.getMessage());
+			}
+		}
+		if (zoneFile != null) {
+			try {
+				resolver.setLocalZone(DnsLocalZone.open(Paths.get(zoneFile)));
+			} catch (IOException e) {
+				System.out.println("\nERROR\tFailed to load the zone file " + zoneFile);
+			}
+		}
+		return resolver;
+	}
+
+	/**
+	 * The server argument can list several servers separated by commas, for
+	 * example @8.8.8.8,1.1.1.1. Queries are raced across all of them, and the
+	 * port option applies to each.
+	 */
+	public List<InetSocketAddress> getServerAddresses() {
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		for (String serverIp : server.split(",")) {
+			addresses.add(new InetSocketAddress(getServerIPAddress(serverIp), Integer.parseInt(port)));
+		}
+		return addresses;
+	}
+
+	public InetAddress getServerIPAddress() {
+		return getServerIPAddress(server.split(",")[0]);
 	}
 
 	/**
 	 * InetAddress.getByAddress method is used to get the IP address of the server.
 	 * If the host is not known, an UnknownHostException is thrown.
 	 * 
+	 * @param server : the IPv4 address in dotted form
 	 */
-	public InetAddress getServerIPAddress() {
+	public InetAddress getServerIPAddress(String server) {
 		InetAddress serverIpAddress = null;
+		byte[] serverAddress = new byte[4];
 		try {
 			String[] ipComponents = server.split("\\.");
 			for (int i = 0; i < ipComponents.length; i++) {
@@ -0,0 +1,323 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A cached response packed into primitive arrays. Every record is a run of
+ * ints: the id of its owner name in a {@link DnsNameTable}, its type and
+ * class, its TTL and its data. A records keep their address, NS, CNAME and
+ * PTR records the id of the name they point to, MX records the exchange name
+ * and the preference, SRV records the target name, priority, weight and port,
+ * and SOA records both of their names, with the five 32 bit fields that
+ * follow them in the raw byte array. The data of any other type
+ * is copied into the raw array as it was received, and the record keeps its
+ * length. An A record takes 16 bytes, no more than it does on the wire.
+ *
+ * Names are interned, so the owner names repeated across an RRset, and the
+ * names shared with other cached responses, are held once. The question and
+ * the ID are not stored at all: {@link #toResponse} rebuilds a packet for the
+ * question it was cached under, with uncompressed names, when the entry is
+ * hit. OPT records are dropped; they describe a single message.
+ *
+ * The TTLs are kept as received, and counted down as the packet is rebuilt,
+ * so a client of the cache never holds a record for longer than its server
+ * allowed. A record served stale gets STALE_TTL, as RFC 8767 suggests.
+ */
+final class DnsCompactResponse {
+	// The most ints a record takes.
+	private static final int MAX_WIDTH = 6;
+	private static final int SOA_FIELDS = 20;
+	// The TTL of records served past their expiry, in seconds.
+	static final int STALE_TTL = 30;
+
+	private final int flags;
+	private final int ancount;
+	private final int nscount;
+	private final int arcount;
+	private final int[] records;
+	private final byte[] raw;
+
+	private DnsCompactResponse(int flags, int ancount, int nscount, int arcount, int[] records, byte[] raw) {
+		this.flags = flags;
+		this.ancount = ancount;
+		this.nscount = nscount;
+		this.arcount = arcount;
+		this.records = records;
+		this.raw = raw;
+	}
+
+	/**
+	 * Pack the records of a response, interning their names. The names stay
+	 * referenced until {@link #release(DnsNameTable)} is called.
+	 */
+	static DnsCompactResponse from(DnsResponse response, DnsNameTable names) {
+		int total = response.getAnswerCount() + response.getHeader().getNSCOUNT()
+				+ response.getHeader().getARCOUNT();
+		int[] records = new int[total * MAX_WIDTH];
+		ByteBuffer raw = ByteBuffer.allocate(0);
+		int[] counts = new int[3];
+		int used = 0;
+		DnsRecordCursor cursor = new DnsRecordCursor();
+		try {
+			for (int section = 0; section < 3; section++) {
+				if (section == 0) {
+					response.answers(cursor);
+				} else if (section == 1) {
+					response.authorities(cursor);
+				} else {
+					response.additionals(cursor);
+				}
+				while (cursor.next()) {
+					int type = cursor.getType();
+					if (type == DnsRecordCursor.TYPE_OPT
+							|| (type == DnsRecordCursor.TYPE_A && cursor.getRDataLength() != 4)) {
+						continue;
+					}
+					ByteBuffer packet = cursor.getPacket();
+					int rdata = cursor.getRDataOffset();
+					int i = used;
+					used += width(type);
+					// The type goes first, so that a failed record can be released.
+					records[i + 1] = type << 16 | cursor.getClazz();
+					records[i + 2] = cursor.getTTL();
+					switch (type) {
+					case DnsRecordCursor.TYPE_A:
+						records[i + 3] = cursor.getIPv4();
+						break;
+					case DnsRecordCursor.TYPE_NS:
+					case DnsRecordCursor.TYPE_CNAME:
+					case DnsRecordCursor.TYPE_PTR:
+						records[i + 3] = names.intern(packet, rdata);
+						break;
+					case DnsRecordCursor.TYPE_MX:
+						records[i + 3] = names.intern(packet, rdata + 2);
+						records[i + 4] = cursor.getPreference();
+						break;
+					case DnsRecordCursor.TYPE_SRV:
+						records[i + 3] = names.intern(packet, rdata + 6);
+						records[i + 4] = cursor.getSRVPriority() << 16 | cursor.getSRVWeight();
+						records[i + 5] = cursor.getSRVPort();
+						break;
+					case DnsRecordCursor.TYPE_SOA:
+						records[i + 3] = names.intern(packet, rdata);
+						int rname = DnsNames.skipName(packet, rdata);
+						records[i + 4] = names.intern(packet, rname);
+						raw = appendRaw(raw, packet, DnsNames.skipName(packet, rname), SOA_FIELDS);
+						break;
+					default:
+						records[i + 3] = cursor.getRDataLength();
+						raw = appendRaw(raw, packet, rdata, cursor.getRDataLength());
+						break;
+					}
+					records[i] = names.intern(packet, cursor.getNameOffset());
+					counts[section]++;
+				}
+			}
+		} catch (RuntimeException e) {
+			// Give back the names interned so far. Slots that were never
+			// filled hold the root name, which is not counted.
+			new DnsCompactResponse(0, 0, 0, 0, Arrays.copyOf(records, used), null).release(names);
+			throw e;
+		}
+		return new DnsCompactResponse(DnsNames.u16(response.getData(), 2) & ~0x0200, counts[0], counts[1],
+				counts[2], Arrays.copyOf(records, used),
+				raw.position() == 0 ? null : Arrays.copyOf(raw.array(), raw.position()));
+	}
+
+	/**
+	 * Rebuild the response as a packet that answers the given question. A name
+	 * that occurs more than once, such as the owner of every record of an
+	 * RRset, is written once and pointed to after that. The names must still
+	 * be referenced.
+	 *
+	 * @param age   : the seconds since the response was cached, taken off
+	 *              every TTL, down to 0.
+	 * @param stale : whether the response is served past its expiry, so every
+	 *              TTL is STALE_TTL instead.
+	 */
+	DnsResponse toResponse(String name, int qtype, DnsNameTable names, long age, boolean stale) {
+		if (name.endsWith(".")) {
+			name = name.substring(0, name.length() - 1);
+		}
+		int length = 12 + (name.isEmpty() ? 1 : name.length() + 2) + 4;
+		for (int i = 0; i < records.length; i += width(records[i + 1] >>> 16)) {
+			length += names.wireLength(records[i]) + 10 + rdataLength(i, names);
+		}
+		ByteBuffer packet = ByteBuffer.allocate(length);
+		packet.putShort((short) 0).putShort((short) flags).putShort((short) 1);
+		packet.putShort((short) ancount).putShort((short) nscount).putShort((short) arcount);
+		writeName(name, packet);
+		packet.putShort((short) qtype).putShort((short) DnsRecordCursor.CLASS_IN);
+		Compressor compressor = new Compressor(name, names, records.length / 2 + 1);
+		int rawIndex = 0;
+		for (int i = 0; i < records.length; i += width(records[i + 1] >>> 16)) {
+			int type = records[i + 1] >>> 16;
+			compressor.write(records[i], packet);
+			packet.putInt(records[i + 1]).putInt(stale ? STALE_TTL : (int) Math.max(0, records[i + 2] - age));
+			int start = packet.position();
+			packet.putShort((short) 0);
+			switch (type) {
+			case DnsRecordCursor.TYPE_A:
+				packet.putInt(records[i + 3]);
+				break;
+			case DnsRecordCursor.TYPE_NS:
+			case DnsRecordCursor.TYPE_CNAME:
+			case DnsRecordCursor.TYPE_PTR:
+				compressor.write(records[i + 3], packet);
+				break;
+			case DnsRecordCursor.TYPE_MX:
+				packet.putShort((short) records[i + 4]);
+				compressor.write(records[i + 3], packet);
+				break;
+			case DnsRecordCursor.TYPE_SRV:
+				// RFC 2782 does not allow the target to be compressed.
+				packet.putInt(records[i + 4]).putShort((short) records[i + 5]);
+				names.write(records[i + 3], packet);
+				break;
+			case DnsRecordCursor.TYPE_SOA:
+				compressor.write(records[i + 3], packet);
+				compressor.write(records[i + 4], packet);
+				packet.put(raw, rawIndex, SOA_FIELDS);
+				rawIndex += SOA_FIELDS;
+				break;
+			default:
+				packet.put(raw, rawIndex, records[i + 3]);
+				rawIndex += records[i + 3];
+				break;
+			}
+			packet.putShort(start, (short) (packet.position() - start - 2));
+		}
+		return new DnsResponse(ByteBuffer.wrap(Arrays.copyOf(packet.array(), packet.position())));
+	}
+
+	// Drop the references this response holds on its names.
+	void release(DnsNameTable names) {
+		for (int i = 0; i < records.length; i += width(records[i + 1] >>> 16)) {
+			names.release(records[i]);
+			switch (records[i + 1] >>> 16) {
+			case DnsRecordCursor.TYPE_SOA:
+				names.release(records[i + 3]);
+				names.release(records[i + 4]);
+				break;
+			case DnsRecordCursor.TYPE_NS:
+			case DnsRecordCursor.TYPE_CNAME:
+			case DnsRecordCursor.TYPE_PTR:
+			case DnsRecordCursor.TYPE_MX:
+			case DnsRecordCursor.TYPE_SRV:
+				names.release(records[i + 3]);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	// Write a dotted ASCII name in wire form.
+	private static void writeName(String name, ByteBuffer out) {
+		int start = 0;
+		while (start < name.length()) {
+			int end = name.indexOf('.', start);
+			if (end < 0) {
+				end = name.length();
+			}
+			out.put((byte) (end - start));
+			for (int i = start; i < end; i++) {
+				out.put((byte) name.charAt(i));
+			}
+			start = end + 1;
+		}
+		out.put((byte) 0);
+	}
+
+	private static int width(int type) {
+		switch (type) {
+		case DnsRecordCursor.TYPE_MX:
+		case DnsRecordCursor.TYPE_SOA:
+			return 5;
+		case DnsRecordCursor.TYPE_SRV:
+			return 6;
+		default:
+			return 4;
+		}
+	}
+
+	private int rdataLength(int i, DnsNameTable names) {
+		switch (records[i + 1] >>> 16) {
+		case DnsRecordCursor.TYPE_A:
+			return 4;
+		case DnsRecordCursor.TYPE_NS:
+		case DnsRecordCursor.TYPE_CNAME:
+		case DnsRecordCursor.TYPE_PTR:
+			return names.wireLength(records[i + 3]);
+		case DnsRecordCursor.TYPE_MX:
+			return 2 + names.wireLength(records[i + 3]);
+		case DnsRecordCursor.TYPE_SRV:
+			return 6 + names.wireLength(records[i + 3]);
+		case DnsRecordCursor.TYPE_SOA:
+			return names.wireLength(records[i + 3]) + names.wireLength(records[i + 4]) + SOA_FIELDS;
+		default:
+			return records[i + 3];
+		}
+	}
+
+	private static ByteBuffer appendRaw(ByteBuffer raw, ByteBuffer packet, int index, int length) {
+		if (raw.remaining() < length) {
+			raw = ByteBuffer.wrap(Arrays.copyOf(raw.array(), Math.max(raw.capacity() * 2, raw.position() + length)))
+					.position(raw.position());
+		}
+		for (int i = 0; i < length; i++) {
+			raw.put(packet.get(index + i));
+		}
+		return raw;
+	}
+
+	// Writes each name in full the first time and as a pointer after that.
+	// The root name is always written in full, as it is shorter than a
+	// pointer and toResponse sizes the packet on that.
+	private static final class Compressor {
+		private final String question;
+		private final DnsNameTable names;
+		private final int[] ids;
+		private final int[] offsets;
+		private int count;
+
+		Compressor(String question, DnsNameTable names, int capacity) {
+			this.question = question;
+			this.names = names;
+			this.ids = new int[capacity];
+			this.offsets = new int[capacity];
+		}
+
+		void write(int id, ByteBuffer out) {
+			if (id == DnsNameTable.ROOT) {
+				out.put((byte) 0);
+				return;
+			}
+			for (int i = 0; i < count; i++) {
+				if (ids[i] == id) {
+					out.putShort((short) (0xC000 | offsets[i]));
+					return;
+				}
+			}
+			if (names.equalsName(id, question)) {
+				// The question name is at offset 12.
+				out.putShort((short) 0xC00C);
+				remember(id, 12);
+				return;
+			}
+			int offset = out.position();
+			names.write(id, out);
+			if (offset <= 0x3FFF) {
+				remember(id, offset);
+			}
+		}
+
+		private void remember(int id, int offset) {
+			if (count < ids.length) {
+				ids[count] = id;
+				offsets[count++] = offset;
+			}
+		}
+	}
+}
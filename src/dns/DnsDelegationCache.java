@@ -0,0 +1,52 @@
+package dns;
+
+/**
+ * A cache of referrals, for iterative resolution. A referral is a
+ * non-authoritative response without answers whose authority section hands
+ * the question to the servers of a zone below the one that was asked; it is
+ * cached under (zone, NS) for the smallest TTL of those NS records, together
+ * with the glue addresses in its additional section. Responses that are not
+ * referrals are not cached.
+ */
+public class DnsDelegationCache extends DnsCache {
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	public DnsDelegationCache(int maxSize) {
+		super(maxSize);
+	}
+
+	@Override
+	protected long getTTL(DnsResponse response) {
+		if (getZone(response) == null) {
+			return -1;
+		}
+		long ttl = -1;
+		DnsRecordCursor cursor = response.authorities();
+		while (cursor.next()) {
+			if (cursor.getType() == DnsRecordCursor.TYPE_NS && (ttl < 0 || cursor.getTTL() < ttl)) {
+				ttl = cursor.getTTL();
+			}
+		}
+		return ttl;
+	}
+
+	/**
+	 * The zone a response delegates to: the owner of the NS records in its
+	 * authority section, in lower case and without a trailing dot.
+	 *
+	 * @return the zone, or null if the response is not a referral.
+	 */
+	public static String getZone(DnsResponse response) {
+		DnsHeader header = response.getHeader();
+		if (header.getRCODE() != 0 || header.getAA() != 0 || response.getAnswerCount() != 0) {
+			return null;
+		}
+		DnsRecordCursor cursor = response.authorities();
+		while (cursor.next()) {
+			if (cursor.getType() == DnsRecordCursor.TYPE_NS && cursor.getClazz() == DnsRecordCursor.CLASS_IN) {
+				return DnsIterativeResolver.normalize(cursor.getName());
+			}
+		}
+		return null;
+	}
+}
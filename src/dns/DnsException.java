@@ -0,0 +1,73 @@
+package dns;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Why a lookup failed. NXDOMAIN and NODATA are not failures: they are
+ * responses, and come back as successful results.
+ */
+public class DnsException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public enum Reason {
+		// The deadline passed before any server answered.
+		TIMEOUT,
+		// Every server failed to answer, or answered SERVFAIL or REFUSED.
+		SERVER_FAILURE,
+		// A response could not be parsed.
+		INVALID_RESPONSE,
+		// The name or the request type cannot be asked.
+		INVALID_REQUEST,
+		// The query could not be sent or its answer received.
+		NETWORK_ERROR,
+		// The resolver was closed.
+		CLOSED,
+		// The calling thread was interrupted while waiting.
+		INTERRUPTED
+	}
+
+	private final Reason reason;
+
+	public DnsException(Reason reason, String message) {
+		super(message);
+		this.reason = reason;
+	}
+
+	public DnsException(Reason reason, String message, Throwable cause) {
+		super(message, cause);
+		this.reason = reason;
+	}
+
+	public Reason getReason() {
+		return this.reason;
+	}
+
+	/**
+	 * Classify the error a lookup future completed with.
+	 */
+	public static DnsException from(Throwable error) {
+		while ((error instanceof CompletionException || error instanceof ExecutionException)
+				&& error.getCause() != null) {
+			error = error.getCause();
+		}
+		if (error instanceof DnsException) {
+			return (DnsException) error;
+		}
+		if (error instanceof SocketTimeoutException || error instanceof TimeoutException) {
+			return new DnsException(Reason.TIMEOUT, "\nERROR\tTimeout occurred", error);
+		}
+		if (error instanceof ClosedChannelException) {
+			return new DnsException(Reason.CLOSED, "\nERROR\tThe resolver is closed", error);
+		}
+		if (error instanceof IOException || error instanceof IllegalStateException) {
+			return new DnsException(Reason.NETWORK_ERROR, "\nERROR\tThe DNS packet wasn't successfully received",
+					error);
+		}
+		return new DnsException(Reason.INVALID_RESPONSE, error.getMessage(), error);
+	}
+}
@@ -0,0 +1,601 @@
+package dns;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A caching DNS forwarder: a server that answers the queries of local stub
+ * resolvers through a DnsResolver, so that every process on a host shares the
+ * resolver's caches, local zone and upstream servers. It listens on UDP and
+ * TCP on the same port.
+ *
+ * Each query is answered with the response the resolver returns, rewritten
+ * for the client: the client's transaction ID, RD bit and question (with its
+ * case), and, if the query had an OPT record, an OPT record of our own in
+ * place of the upstream one. A UDP response larger than the client can
+ * receive, 512 bytes or the payload size of its OPT record, is replaced by an
+ * empty one with the TC bit set, so the client retries over TCP. Queries the
+ * resolver cannot answer get SERVFAIL; malformed ones get FORMERR, and
+ * anything but a standard query in the IN class NOTIMP.
+ *
+ * UDP queries are read by a number of shards, by default one per core. Where
+ * the platform has SO_REUSEPORT, each shard has its own socket bound to the
+ * same port, and the kernel spreads the clients across them; elsewhere the
+ * shards share one socket. A shard's thread also sends the answers that come
+ * straight from the cache; answers that need an upstream query are sent by
+ * the thread that completes them. TCP connections are served by one event loop
+ * thread, as in DnsTcpTransport, and queries on a connection are answered in
+ * whatever order their answers arrive. At most MAX_CONNECTIONS are open at
+ * once; further clients are disconnected as soon as they connect, and a
+ * connection with no answer outstanding is closed after IDLE_TIMEOUT.
+ */
+public class DnsForwarder implements Closeable {
+	private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+	private static final int MAX_CONNECTIONS = 256;
+	private static final int BIND_ATTEMPTS = 8;
+	private static final int RCODE_FORMERR = 1;
+	private static final int RCODE_SERVFAIL = 2;
+	private static final int RCODE_NOTIMP = 4;
+
+	private final DnsResolver resolver;
+	private final DatagramChannel[] udp;
+	private final ServerSocketChannel tcp;
+	private final Selector selector;
+	private final Thread[] udpThreads;
+	private final Thread tcpThread;
+	private final ConcurrentLinkedQueue<Reply> tcpReplies = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed;
+
+	private final LongAdder queries = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder truncated = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	// Only touched by the TCP event loop thread.
+	private final List<Connection> connections = new ArrayList<>();
+
+	/**
+	 * @param resolver : answers the queries. It is not closed with the
+	 *                 forwarder.
+	 * @param address  : the address to listen on; port 0 picks a port that is
+	 *                 free for both UDP and TCP, trying a few ports if the
+	 *                 first one picked for UDP is taken for TCP.
+	 */
+	public DnsForwarder(DnsResolver resolver, InetSocketAddress address) throws IOException {
+		this(resolver, address, DnsUdpTransport.DEFAULT_SHARDS);
+	}
+
+	/**
+	 * @param shards : the number of threads reading UDP queries.
+	 * @see #DnsForwarder(DnsResolver, InetSocketAddress)
+	 */
+	public DnsForwarder(DnsResolver resolver, InetSocketAddress address, int shards) throws IOException {
+		if (shards < 1) {
+			throw new IllegalArgumentException("\nERROR\tThe number of shards must be at least 1");
+		}
+		this.resolver = resolver;
+		this.selector = Selector.open();
+		this.tcp = ServerSocketChannel.open();
+		try {
+			this.udp = bind(address, shards);
+			tcp.configureBlocking(false);
+			tcp.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			tcp.close();
+			selector.close();
+			throw e;
+		}
+		this.udpThreads = new Thread[shards];
+		for (int i = 0; i < shards; i++) {
+			DatagramChannel channel = udp[i % udp.length];
+			udpThreads[i] = new Thread(() -> runUdp(channel), "dns-forwarder-udp-" + i);
+			udpThreads[i].setDaemon(true);
+		}
+		this.tcpThread = new Thread(this::runTcp, "dns-forwarder-tcp");
+		this.tcpThread.setDaemon(true);
+		for (Thread thread : udpThreads) {
+			thread.start();
+		}
+		this.tcpThread.start();
+	}
+
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) udp[0].getLocalAddress();
+	}
+
+	// Bind the UDP sockets, then the TCP socket to the same port. A port the
+	// system picked for UDP may be taken for TCP; then pick another one.
+	private DatagramChannel[] bind(InetSocketAddress address, int shards) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			DatagramChannel[] channels = bindUdp(address, shards);
+			int port = ((InetSocketAddress) channels[0].getLocalAddress()).getPort();
+			try {
+				tcp.bind(new InetSocketAddress(address.getAddress(), port));
+				return channels;
+			} catch (BindException e) {
+				closeAll(channels);
+				if (address.getPort() != 0 || attempt == BIND_ATTEMPTS) {
+					throw e;
+				}
+			} catch (IOException e) {
+				closeAll(channels);
+				throw e;
+			}
+		}
+	}
+
+	// One socket per shard where SO_REUSEPORT is supported, otherwise one.
+	private static DatagramChannel[] bindUdp(InetSocketAddress address, int shards) throws IOException {
+		DatagramChannel first = DatagramChannel.open();
+		boolean reusePort = shards > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		DatagramChannel[] channels = new DatagramChannel[reusePort ? shards : 1];
+		channels[0] = first;
+		try {
+			for (int i = 0; i < channels.length; i++) {
+				if (i > 0) {
+					channels[i] = DatagramChannel.open();
+				}
+				if (reusePort) {
+					channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				channels[i].bind(i == 0 ? address : channels[0].getLocalAddress());
+			}
+		} catch (IOException e) {
+			closeAll(channels);
+			throw e;
+		}
+		return channels;
+	}
+
+	private static void closeAll(DatagramChannel[] channels) throws IOException {
+		for (DatagramChannel channel : channels) {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+	}
+
+	// Count queries, failures and truncations under "forwarder.".
+	public void setMetrics(DnsMetrics metrics) {
+		metrics.gauge("forwarder.queries", this::getQueries);
+		metrics.gauge("forwarder.failures", this::getFailures);
+		metrics.gauge("forwarder.truncated", this::getTruncated);
+		metrics.gauge("forwarder.dropped", this::getDropped);
+	}
+
+	// The queries received over UDP and TCP.
+	public long getQueries() {
+		return queries.sum();
+	}
+
+	// The queries answered with SERVFAIL.
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	// The UDP answers that did not fit and were sent truncated.
+	public long getTruncated() {
+		return truncated.sum();
+	}
+
+	// The packets that were not queries and were dropped without an answer,
+	// and the TCP clients turned away at the connection limit.
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		closeQuietly();
+		try {
+			for (Thread thread : udpThreads) {
+				thread.join();
+			}
+			tcpThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void closeQuietly() {
+		try {
+			for (DatagramChannel channel : udp) {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+			tcp.close();
+		} catch (IOException e) {
+			System.out.println("\nERROR\tFailed to close the socket");
+		}
+		selector.wakeup();
+	}
+
+	private void runUdp(DatagramChannel channel) {
+		ByteBuffer packet = DnsUdpTransport.RECEIVE_BUFFERS.acquire();
+		try {
+			while (true) {
+				packet.clear();
+				SocketAddress client = channel.receive(packet);
+				packet.flip();
+				handle(packet, channel, client, null);
+			}
+		} catch (ClosedChannelException e) {
+			// Closed by close().
+		} catch (IOException e) {
+			System.out.println("\nERROR\tThe forwarder failed: " + e.getMessage());
+		} finally {
+			DnsUdpTransport.RECEIVE_BUFFERS.release(packet);
+		}
+	}
+
+	/**
+	 * Answer one query, now if it is answered from the cache and otherwise
+	 * when the resolver completes it. The query is copied, since the buffer it
+	 * arrived in is reused as soon as this returns.
+	 *
+	 * @param packet     : the query, between 0 and its limit.
+	 * @param channel    : the socket a UDP query came on, or null.
+	 * @param client     : where a UDP answer goes.
+	 * @param connection : the connection a TCP query came on, or null.
+	 * @return false if the packet was dropped and will not be answered.
+	 */
+	private boolean handle(ByteBuffer packet, DatagramChannel channel, SocketAddress client, Connection connection) {
+		if (packet.remaining() < 12 || (packet.get(2) & 0x80) != 0) {
+			dropped.increment();
+			return false;
+		}
+		queries.increment();
+		int end = packet.remaining() < 17 || DnsNames.u16(packet, 4) != 1 ? -1 : questionEnd(packet);
+		if ((packet.get(2) & 0x78) != 0 || (end > 0 && DnsNames.u16(packet, end - 2) != DnsRecordCursor.CLASS_IN)) {
+			reply(error(packet, end, RCODE_NOTIMP), channel, client, connection);
+			return true;
+		}
+		String qtype = end < 0 ? null : DnsRecordType.nameOf(DnsNames.u16(packet, end - 4));
+		if (qtype == null || DnsQuestion.getTypeCode(qtype) == 0) {
+			reply(error(packet, end, RCODE_FORMERR), channel, client, connection);
+			return true;
+		}
+		Query query = new Query(packet, end);
+		CompletableFuture<DnsResponse> answer;
+		try {
+			answer = resolver.resolve(DnsNames.readName(packet, 12), qtype);
+		} catch (RuntimeException e) {
+			answer = CompletableFuture.failedFuture(e);
+		}
+		// Runs right here when the answer was cached.
+		answer.whenComplete((response, error) -> reply(query.answer(response, connection == null), channel, client,
+				connection));
+		return true;
+	}
+
+	// The offset after QTYPE and QCLASS of the first question, or -1 if the
+	// question runs past the end of the packet or uses compression, which a
+	// query has no reason to, and which could loop.
+	private static int questionEnd(ByteBuffer packet) {
+		int index = 12;
+		int len;
+		while ((len = DnsNames.u8(packet, index)) != 0) {
+			if ((len & 0xC0) != 0 || index + len + 1 - 12 > 254 || index + len + 1 >= packet.limit()) {
+				return -1;
+			}
+			index += len + 1;
+		}
+		return index + 5 <= packet.limit() ? index + 5 : -1;
+	}
+
+	// An answer with only the header and the question, if it could be parsed.
+	private static ByteBuffer error(ByteBuffer packet, int end, int rcode) {
+		int length = end < 0 ? 12 : end;
+		ByteBuffer out = ByteBuffer.allocate(length);
+		out.put(packet.duplicate().limit(length).position(0)).flip();
+		out.put(2, (byte) (0x80 | (packet.get(2) & 0x79)));
+		out.put(3, (byte) (0x80 | rcode));
+		out.putShort(4, (short) (end < 0 ? 0 : 1)).putShort(6, (short) 0).putShort(8, (short) 0).putShort(10,
+				(short) 0);
+		return out;
+	}
+
+	private void reply(ByteBuffer answer, DatagramChannel channel, SocketAddress client, Connection connection) {
+		if (connection != null) {
+			tcpReplies.add(new Reply(connection, answer));
+			selector.wakeup();
+			return;
+		}
+		try {
+			channel.send(answer, client);
+		} catch (IOException e) {
+			// The client is gone or the socket is closed; there is no one to tell.
+		}
+	}
+
+	/**
+	 * What the answer to a query has to be rewritten with: the client's ID,
+	 * flags and question, and the largest UDP answer it accepts.
+	 */
+	private final class Query {
+		final int id;
+		final int rd;
+		final byte[] question;
+		final boolean edns;
+		final int maxSize;
+
+		Query(ByteBuffer packet, int end) {
+			this.id = DnsNames.u16(packet, 0);
+			this.rd = packet.get(2) & 0x01;
+			this.question = new byte[end - 12];
+			packet.get(12, question);
+			int size = DnsUdpTransport.MAX_DNS_PACKET_SIZE;
+			boolean opt = false;
+			if (DnsNames.u16(packet, 10) == 1 && packet.limit() >= end + 11 && packet.get(end) == 0
+					&& DnsNames.u16(packet, end + 1) == DnsRecordCursor.TYPE_OPT) {
+				opt = true;
+				size = Math.max(size, DnsNames.u16(packet, end + 3));
+			}
+			this.edns = opt;
+			this.maxSize = Math.min(size, DnsUdpTransport.MAX_UDP_PAYLOAD_SIZE);
+		}
+
+		/**
+		 * Copy the response for the client, or SERVFAIL if there is none or it
+		 * cannot be read. Records of the additional section are copied one by
+		 * one to leave out the upstream OPT record; the rest is copied as it
+		 * is, so compression pointers stay valid.
+		 */
+		ByteBuffer answer(DnsResponse response, boolean udp) {
+			if (response == null) {
+				return failure();
+			}
+			try {
+				return copy(response, udp);
+			} catch (RuntimeException e) {
+				return failure();
+			}
+		}
+
+		private ByteBuffer copy(DnsResponse response, boolean udp) {
+			ByteBuffer data = response.getData();
+			DnsRecordCursor cursor = response.additionals();
+			int prefix = data.limit();
+			int additionals = 0;
+			ByteBuffer out = ByteBuffer.allocate(data.limit() + 11);
+			if (cursor.next()) {
+				prefix = cursor.getNameOffset();
+				out.put(data.duplicate().limit(prefix).position(0));
+				do {
+					if (cursor.getType() != DnsRecordCursor.TYPE_OPT) {
+						int start = cursor.getNameOffset();
+						out.put(data.duplicate().limit(cursor.getRDataOffset() + cursor.getRDataLength())
+								.position(start));
+						additionals++;
+					}
+				} while (cursor.next());
+			} else {
+				out.put(data.duplicate().limit(prefix).position(0));
+			}
+			if (edns) {
+				out.put(DnsQuestion.getOptRecord(DnsUdpTransport.DEFAULT_UDP_PAYLOAD_SIZE));
+				additionals++;
+			}
+			if (udp && out.position() > maxSize) {
+				truncated.increment();
+				return truncate();
+			}
+			out.flip();
+			out.putShort(0, (short) id);
+			out.put(2, (byte) ((data.get(2) & ~0x01) | rd));
+			out.putShort(10, (short) additionals);
+			if (DnsNames.u16(data, 4) == 1 && DnsNames.skipName(data, 12) + 4 == 12 + question.length) {
+				out.put(12, question);
+			}
+			return out;
+		}
+
+		// An empty answer with TC set, so the client retries over TCP.
+		ByteBuffer truncate() {
+			ByteBuffer out = ByteBuffer.allocate(12 + question.length + (edns ? 11 : 0));
+			out.putShort((short) id).put((byte) (0x82 | rd)).put((byte) 0x80);
+			out.putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) (edns ? 1 : 0));
+			out.put(question);
+			if (edns) {
+				out.put(DnsQuestion.getOptRecord(DnsUdpTransport.DEFAULT_UDP_PAYLOAD_SIZE));
+			}
+			return out.flip();
+		}
+
+		ByteBuffer failure() {
+			failures.increment();
+			ByteBuffer out = ByteBuffer.allocate(12 + question.length);
+			out.putShort((short) id).put((byte) (0x80 | rd)).put((byte) (0x80 | RCODE_SERVFAIL));
+			out.putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+			return out.put(question).flip();
+		}
+	}
+
+	private void runTcp() {
+		try {
+			while (!closed) {
+				selector.select(TimeUnit.NANOSECONDS.toMillis(IDLE_TIMEOUT));
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						((Connection) key.attachment()).handle(key);
+					}
+				}
+				selector.selectedKeys().clear();
+				Reply reply;
+				while ((reply = tcpReplies.poll()) != null) {
+					reply.connection.send(reply.answer);
+				}
+				expireConnections();
+			}
+		} catch (ClosedChannelException e) {
+			// Closed by close().
+		} catch (IOException e) {
+			if (!closed) {
+				System.out.println("\nERROR\tThe forwarder failed: " + e.getMessage());
+			}
+		} finally {
+			for (Connection connection : new ArrayList<>(connections)) {
+				connection.close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				System.out.println("\nERROR\tFailed to close the socket");
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = tcp.accept()) != null) {
+			if (connections.size() >= MAX_CONNECTIONS) {
+				dropped.increment();
+				channel.close();
+			} else {
+				connections.add(new Connection(channel));
+			}
+		}
+	}
+
+	private void expireConnections() {
+		long now = System.nanoTime();
+		for (Connection connection : new ArrayList<>(connections)) {
+			if (connection.pending == 0 && now - connection.lastUsed > IDLE_TIMEOUT) {
+				connection.close();
+			}
+		}
+	}
+
+	// A TCP client connection: 2-byte length-prefixed queries in, answers out.
+	private final class Connection {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+		final ByteBuffer length = ByteBuffer.allocate(2);
+		ByteBuffer message;
+		int pending;
+		boolean open = true;
+		long lastUsed = System.nanoTime();
+
+		Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			channel.configureBlocking(false);
+			this.key = channel.register(selector, SelectionKey.OP_READ, this);
+		}
+
+		void handle(SelectionKey key) {
+			try {
+				if (key.isReadable()) {
+					read();
+				}
+				if (open && key.isValid() && key.isWritable()) {
+					write();
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void read() throws IOException {
+			while (open) {
+				if (message == null) {
+					if (channel.read(length) < 0) {
+						throw new EOFException();
+					}
+					if (length.hasRemaining()) {
+						return;
+					}
+					message = ByteBuffer.allocate(DnsNames.u16(length, 0));
+					length.clear();
+				}
+				if (channel.read(message) < 0) {
+					throw new EOFException();
+				}
+				if (message.hasRemaining()) {
+					return;
+				}
+				lastUsed = System.nanoTime();
+				// Replies are sent by this thread, after the read.
+				if (DnsForwarder.this.handle(message.flip(), null, null, this)) {
+					pending++;
+				}
+				message = null;
+			}
+		}
+
+		void send(ByteBuffer answer) {
+			pending--;
+			if (!open) {
+				return;
+			}
+			writes.add(ByteBuffer.allocate(2).putShort(0, (short) answer.remaining()));
+			writes.add(answer);
+			try {
+				write();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void write() throws IOException {
+			ByteBuffer buffer;
+			while ((buffer = writes.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				writes.poll();
+			}
+			lastUsed = System.nanoTime();
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		void close() {
+			open = false;
+			connections.remove(this);
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println("\nERROR\tFailed to close the socket");
+			}
+		}
+	}
+
+	private static final class Reply {
+		final Connection connection;
+		final ByteBuffer answer;
+
+		Reply(Connection connection, ByteBuffer answer) {
+			this.connection = connection;
+			this.answer = answer;
+		}
+	}
+}
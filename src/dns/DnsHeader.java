@@ -1,11 +1,17 @@
 package dns;
 
+import java.nio.ByteBuffer;
+
 public class DnsHeader {
 	private short ID;
 	private byte QR, OPCODE, AA, TC, RD, RA, Z, RCODE;
 	private short QDCOUNT, ANCOUNT, NSCOUNT, ARCOUNT;
 	private byte[] header;
 
+	// An empty header, to be filled in by parseHeader.
+	public DnsHeader() {
+	}
+
 	public DnsHeader(short id, byte qr, byte opcode, byte aa, byte tc, byte rd, byte ra, byte z, byte rcode,
 			short qdcount, short ancount, short nscount, short arcount) {
 		this.ID = id;
@@ -49,24 +55,32 @@ public class DnsHeader {
 
 	// Parse the header fields based on the response data.
 	public void parseHeader(byte[] header) {
-		this.ID = (short) ((header[0] << 8) | header[1]);
+		parseHeader(ByteBuffer.wrap(header));
+	}
 
-		this.QR = (byte) ((header[2] >> 7) & 1);
+	// Parse the header fields from the first 12 bytes of the packet, using
+	// absolute reads so the buffer's position is left untouched.
+	public void parseHeader(ByteBuffer packet) {
+		this.ID = (short) DnsNames.u16(packet, 0);
+
+		int flags = DnsNames.u8(packet, 2);
+		this.QR = (byte) ((flags >> 7) & 1);
 		if (this.QR == 0) {
 			throw new RuntimeException("\nERROR\tUnexpected response: this message is not a response.");
 		}
-		this.OPCODE = (byte) (((header[2] & 0xff) >>> 3) & 0x0f);
-		this.AA = (byte) ((header[2] >> 2) & 1);
-		this.TC = (byte) ((header[2] >> 1) & 1);
-		this.RD = (byte) (header[2] & 1);
-		this.RA = (byte) ((header[3] >> 7) & 1);
-		this.Z = (byte) (((header[3] & 0xff) >>> 4) & 0x07);
-		this.RCODE = (byte) ((header[3] & 0xff) & 0x0f);
-
-		this.QDCOUNT = (short) ((header[4] << 8) | header[5]);
-		this.ANCOUNT = (short) ((header[6] << 8) | header[7]);
-		this.NSCOUNT = (short) ((header[8] << 8) | header[9]);
-		this.ARCOUNT = (short) ((header[10] << 8) | header[11]);
+		this.OPCODE = (byte) ((flags >>> 3) & 0x0f);
+		this.AA = (byte) ((flags >> 2) & 1);
+		this.TC = (byte) ((flags >> 1) & 1);
+		this.RD = (byte) (flags & 1);
+		flags = DnsNames.u8(packet, 3);
+		this.RA = (byte) ((flags >> 7) & 1);
+		this.Z = (byte) ((flags >>> 4) & 0x07);
+		this.RCODE = (byte) (flags & 0x0f);
+
+		this.QDCOUNT = (short) DnsNames.u16(packet, 4);
+		this.ANCOUNT = (short) DnsNames.u16(packet, 6);
+		this.NSCOUNT = (short) DnsNames.u16(packet, 8);
+		this.ARCOUNT = (short) DnsNames.u16(packet, 10);
 	}
 
 	// Handle the error based on the response code. If code 3 occurs, we output
@@ -83,6 +97,7 @@ public class DnsHeader {
 					"\nERROR\tServer failure: the name server was unable to process this query due to a problem with the name server");
 		case 3:
 			isCaseThree = true;
+			break;
 		case 4:
 			throw new RuntimeException("\nERROR\tNot implemented: the name server does not support the requested kind of query");
 		case 5:
@@ -92,16 +107,33 @@ public class DnsHeader {
 		return isCaseThree;
 	}
 
-	public short getANCOUNT() {
-		return this.ANCOUNT;
+	public short getID() {
+		return this.ID;
+	}
+
+	public byte getRCODE() {
+		return this.RCODE;
+	}
+
+	public byte getTC() {
+		return this.TC;
+	}
+
+	// The counts are unsigned 16 bit values on the wire.
+	public int getQDCOUNT() {
+		return this.QDCOUNT & 0xffff;
+	}
+
+	public int getANCOUNT() {
+		return this.ANCOUNT & 0xffff;
 	}
 
-	public short getNSCOUNT() {
-		return this.NSCOUNT;
+	public int getNSCOUNT() {
+		return this.NSCOUNT & 0xffff;
 	}
 
-	public short getARCOUNT() {
-		return this.ARCOUNT;
+	public int getARCOUNT() {
+		return this.ARCOUNT & 0xffff;
 	}
 
 	public byte getAA() {
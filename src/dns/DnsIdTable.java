@@ -0,0 +1,111 @@
+package dns;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * The outstanding queries of one socket, indexed by transaction ID. The table
+ * has a slot for each of the 65536 IDs, so adding, finding and removing a
+ * query are a single array access, and IDs are claimed with a compare and set,
+ * so no lock is taken.
+ *
+ * IDs are drawn from a SecureRandom, as RFC 5452 asks, so that an off-path
+ * attacker cannot predict them. Reading the SecureRandom for every ID would
+ * cost more than the rest of a query, so each thread takes its random bits in
+ * batches. A drawn ID that is already in use is redrawn, and the table is
+ * never filled beyond its limit, which keeps the number of draws small.
+ */
+final class DnsIdTable<T> {
+	private static final int IDS = 1 << 16;
+	private static final int MAX_DRAWS = 16;
+	private static final SecureRandom SEED = new SecureRandom();
+	private static final ThreadLocal<Bits> BITS = ThreadLocal.withInitial(Bits::new);
+
+	private final AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(IDS);
+	private final AtomicInteger size = new AtomicInteger();
+	private final int limit;
+
+	/**
+	 * @param limit : the most IDs that can be in use at once, at most 65536.
+	 */
+	DnsIdTable(int limit) {
+		this.limit = Math.min(limit, IDS);
+	}
+
+	/**
+	 * Claim an unused ID for a query.
+	 *
+	 * @return the ID, or -1 if the table is at its limit.
+	 */
+	int add(T query) {
+		if (size.incrementAndGet() > limit) {
+			size.decrementAndGet();
+			return -1;
+		}
+		Bits bits = BITS.get();
+		for (int i = 0; i < MAX_DRAWS; i++) {
+			int id = bits.next16();
+			if (slots.get(id) == null && slots.compareAndSet(id, null, query)) {
+				return id;
+			}
+		}
+		// Only reached when the table is nearly full: take the next free slot
+		// after a random one. A slot is reserved for us by the size count.
+		for (int id = bits.next16();; id = (id + 1) & (IDS - 1)) {
+			if (slots.get(id) == null && slots.compareAndSet(id, null, query)) {
+				return id;
+			}
+		}
+	}
+
+	// The query waiting for the ID, or null.
+	T get(int id) {
+		return slots.get(id & (IDS - 1));
+	}
+
+	// Free the ID if it still belongs to the query.
+	boolean remove(int id, T query) {
+		if (id >= 0 && id < IDS && slots.compareAndSet(id, query, null)) {
+			size.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	int size() {
+		return size.get();
+	}
+
+	// Remove every query, handing each to the action.
+	void drain(Consumer<T> action) {
+		for (int id = 0; id < IDS && size.get() > 0; id++) {
+			T query = slots.get(id);
+			if (query != null && remove(id, query)) {
+				action.accept(query);
+			}
+		}
+	}
+
+	// A uniformly random int below the bound, from the same source as IDs.
+	static int random(int bound) {
+		return (int) ((BITS.get().next16() * (long) bound) >>> 16);
+	}
+
+	// 64 bytes from the SecureRandom at a time, handed out 16 bits at a time.
+	private static final class Bits {
+		private final byte[] bytes = new byte[64];
+		private int next = bytes.length;
+
+		int next16() {
+			if (next == bytes.length) {
+				SEED.nextBytes(bytes);
+				next = 0;
+			}
+			int bits = (bytes[next] & 0xff) << 8 | (bytes[next + 1] & 0xff);
+			next += 2;
+			return bits;
+		}
+	}
+}
@@ -0,0 +1,480 @@
+package dns;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves names the way a recursive server does, instead of asking one to.
+ * A lookup starts at the deepest zone whose delegation is cached, or at the
+ * root hints, and asks that zone's servers with RD=0. A referral moves the
+ * lookup down to the delegated zone: its servers are taken from the glue A
+ * records of the additional section, and when a server name has no glue, it
+ * is resolved first by a lookup of its own. A CNAME answer restarts the lookup
+ * at its target, and the final response is rewritten to begin with the chain
+ * of CNAME records that led to it.
+ *
+ * Only data a server is responsible for is believed: glue only for server
+ * names inside the delegated zone, and answers only when they are
+ * authoritative and owned by names inside the zone that was asked. Anything
+ * else could be planted by a server for one zone to hijack another.
+ *
+ * Referrals are kept in a DnsDelegationCache, so later lookups under the same
+ * zone go straight to its servers. A server that times out or answers with an
+ * error is replaced by the next server of the same zone, fastest first.
+ *
+ * The port of the first root hint is used for every server found in
+ * referrals, so a set of local stub servers on 127.0.0.x can stand in for the
+ * real hierarchy.
+ */
+public class DnsIterativeResolver implements DnsUpstream {
+	public static final int MAX_REFERRALS = 16;
+	public static final int MAX_CNAMES = 8;
+	// The most queries one lookup may send, including the lookups of server
+	// names without glue.
+	public static final int MAX_QUERIES = 64;
+	private static final int MAX_SERVERS_PER_ZONE = 8;
+	private static final int MAX_GLUELESS_DEPTH = 3;
+	private static final int MAX_MESSAGE_SIZE = 65535;
+
+	private static final String[] ROOT_SERVERS = { "198.41.0.4", "170.247.170.2", "192.33.4.12", "199.7.91.13",
+			"192.203.230.10", "192.5.5.241", "192.112.36.4", "198.97.190.53", "192.36.148.17", "192.58.128.30",
+			"193.0.14.129", "199.7.83.42", "202.12.27.33" };
+
+	private final List<InetSocketAddress> rootHints;
+	private final int port;
+	private final DnsUdpTransport transport;
+	private final DnsTcpTransport tcpTransport;
+	private final DnsDelegationCache delegations;
+	private final DnsCache serverAddresses;
+
+	/**
+	 * @param rootHints    : the servers of the root zone.
+	 * @param transport    : the transport for UDP queries.
+	 * @param tcpTransport : the transport for truncated answers.
+	 * @param delegations  : the cache of referrals.
+	 */
+	public DnsIterativeResolver(List<InetSocketAddress> rootHints, DnsUdpTransport transport,
+			DnsTcpTransport tcpTransport, DnsDelegationCache delegations) {
+		if (rootHints.isEmpty()) {
+			throw new IllegalArgumentException("\nERROR\tAt least one root hint is required");
+		}
+		this.rootHints = new ArrayList<>(rootHints);
+		this.port = rootHints.get(0).getPort();
+		this.transport = transport;
+		this.tcpTransport = tcpTransport;
+		this.delegations = delegations;
+		this.serverAddresses = new DnsCache(DnsDelegationCache.DEFAULT_MAX_SIZE);
+	}
+
+	// The IPv4 addresses of the thirteen root servers, on the given port.
+	public static List<InetSocketAddress> getDefaultRootHints(int port) {
+		List<InetSocketAddress> hints = new ArrayList<>(ROOT_SERVERS.length);
+		for (String address : ROOT_SERVERS) {
+			hints.add(new InetSocketAddress(address, port));
+		}
+		return hints;
+	}
+
+	@Override
+	public CompletableFuture<DnsResponse> query(String name, String qtype, int timeout, int maxRetries) {
+		Lookup lookup = new Lookup(name, qtype, timeout, maxRetries, 0, new AtomicInteger(MAX_QUERIES));
+		lookup.start();
+		return lookup.result;
+	}
+
+	public DnsDelegationCache getDelegationCache() {
+		return this.delegations;
+	}
+
+	// Lower case and without a trailing dot; the root zone is "".
+	static String normalize(String name) {
+		if (name.endsWith(".")) {
+			name = name.substring(0, name.length() - 1);
+		}
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	static boolean isSubdomain(String name, String zone) {
+		return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+	}
+
+	private static DnsException serverFailure(String message) {
+		return new DnsException(DnsException.Reason.SERVER_FAILURE, message);
+	}
+
+	private static String parent(String zone) {
+		int dot = zone.indexOf('.');
+		return dot < 0 ? "" : zone.substring(dot + 1);
+	}
+
+	private final class Lookup {
+		final String name;
+		final String qtype;
+		final int type;
+		final int timeout;
+		final int maxRetries;
+		final int depth;
+		final AtomicInteger queriesLeft;
+		final CompletableFuture<DnsResponse> result = new CompletableFuture<>();
+		// Responses whose CNAME records were followed out of them.
+		final List<DnsResponse> chain = new ArrayList<>();
+		// The zone each of those responses came from.
+		final List<String> chainZones = new ArrayList<>();
+		String current;
+		int referrals;
+		int cnames;
+
+		Lookup(String name, String qtype, int timeout, int maxRetries, int depth, AtomicInteger queriesLeft) {
+			this.name = name;
+			this.qtype = qtype;
+			this.type = DnsQuestion.getTypeCode(qtype);
+			this.timeout = timeout;
+			this.maxRetries = maxRetries;
+			this.depth = depth;
+			this.queriesLeft = queriesLeft;
+			this.current = normalize(name);
+		}
+
+		// Start from the deepest cached delegation above the current name.
+		void start() {
+			for (String zone = current;; zone = parent(zone)) {
+				DnsResponse referral = delegations.get(zone, DnsRecordCursor.TYPE_NS);
+				if (referral != null) {
+					askZone(zone, referral);
+					return;
+				}
+				if (zone.isEmpty()) {
+					break;
+				}
+			}
+			ask("", new ArrayList<>(rootHints), 0, null);
+		}
+
+		// Ask the servers a referral names, resolving a server name first if
+		// none of them came with glue. Glue is only taken for names inside the
+		// zone; the others are looked up like any other name.
+		void askZone(String zone, DnsResponse referral) {
+			List<String> names = new ArrayList<>();
+			List<String> inZone = new ArrayList<>();
+			List<InetSocketAddress> servers = new ArrayList<>();
+			DnsRecordCursor cursor = referral.authorities();
+			while (cursor.next()) {
+				if (cursor.getType() == DnsRecordCursor.TYPE_NS && normalize(cursor.getName()).equals(zone)) {
+					String server = normalize(cursor.getRDataName());
+					names.add(server);
+					if (isSubdomain(server, zone)) {
+						inZone.add(server);
+					}
+				}
+			}
+			addAddresses(referral.additionals(), inZone, servers);
+			for (String server : names) {
+				DnsResponse cached = serverAddresses.get(server, DnsRecordCursor.TYPE_A);
+				if (cached != null) {
+					addAddresses(cached.answers(), Collections.singletonList(server), servers);
+				}
+			}
+			if (!servers.isEmpty()) {
+				ask(zone, servers, 0, null);
+				return;
+			}
+			// No usable glue: resolve the server names one by one until one has
+			// an address.
+			resolveServer(zone, names, 0);
+		}
+
+		void resolveServer(String zone, List<String> names, int index) {
+			if (index >= names.size() || depth >= MAX_GLUELESS_DEPTH) {
+				fail(serverFailure("\nERROR\tNo address for any server of the zone \"" + zone + "\""));
+				return;
+			}
+			String server = names.get(index);
+			Lookup lookup = new Lookup(server, "A", timeout, maxRetries, depth + 1, queriesLeft);
+			lookup.start();
+			lookup.result.whenComplete((response, error) -> {
+				List<InetSocketAddress> servers = new ArrayList<>();
+				if (error == null) {
+					serverAddresses.put(server, DnsRecordCursor.TYPE_A, response);
+					addAddresses(response.answers(), Collections.singletonList(server), servers);
+				}
+				if (servers.isEmpty()) {
+					resolveServer(zone, names, index + 1);
+				} else {
+					ask(zone, servers, 0, null);
+				}
+			});
+		}
+
+		// Ask the servers of a zone in turn, fastest first, until one gives a
+		// usable response.
+		void ask(String zone, List<InetSocketAddress> servers, int index, Throwable lastError) {
+			if (index == 0) {
+				servers.sort((a, b) -> Long.compare(transport.rttFor(a).getSRTT(), transport.rttFor(b).getSRTT()));
+			}
+			if (index >= servers.size() || index >= MAX_SERVERS_PER_ZONE) {
+				fail(lastError != null ? lastError
+						: serverFailure("\nERROR\tNo server of the zone \"" + zone + "\" answered"));
+				return;
+			}
+			if (queriesLeft.getAndDecrement() <= 0) {
+				fail(serverFailure("\nERROR\tGave up on " + name + " after " + MAX_QUERIES + " queries"));
+				return;
+			}
+			int retries = servers.size() > 1 ? 0 : maxRetries;
+			DnsServerPool.exchange(transport, tcpTransport, servers.get(index), current, qtype, timeout, retries, false)
+					.whenComplete((response, error) -> {
+						if (error != null) {
+							ask(zone, servers, index + 1, error);
+						} else if (!handle(zone, response)) {
+							ask(zone, servers, index + 1, serverFailure("\nERROR\tServer " + servers.get(index)
+									+ " gave an unusable answer for " + current));
+						}
+					});
+		}
+
+		/**
+		 * Act on a server's response: finish, follow a referral or a CNAME.
+		 *
+		 * @return false if the response is useless and the next server of the
+		 *         zone should be asked instead.
+		 */
+		boolean handle(String zone, DnsResponse response) {
+			int rcode = response.getHeader().getRCODE();
+			if (rcode == 3 && response.getHeader().getAA() != 0) {
+				finish(zone, response);
+				return true;
+			}
+			if (rcode != 0) {
+				return false;
+			}
+			if (response.getAnswerCount() > 0) {
+				// Answers from a server that is not authoritative for them may
+				// be stale or forged.
+				if (response.getHeader().getAA() == 0) {
+					return false;
+				}
+				String target = followChain(zone, response);
+				if (target == null) {
+					finish(zone, response);
+				} else if (++cnames > MAX_CNAMES) {
+					fail(serverFailure("\nERROR\tThe CNAME chain of " + name + " is too long"));
+				} else {
+					chain.add(response);
+					chainZones.add(zone);
+					current = target;
+					start();
+				}
+				return true;
+			}
+			String child = DnsDelegationCache.getZone(response);
+			if (child != null) {
+				// Only a referral down towards the name is progress; anything else
+				// is a lame server.
+				if (child.equals(zone) || !isSubdomain(child, zone) || !isSubdomain(current, child)) {
+					return false;
+				}
+				if (++referrals > MAX_REFERRALS) {
+					fail(serverFailure("\nERROR\tToo many referrals for " + name));
+					return true;
+				}
+				// The glue is checked against the zone whenever the referral is
+				// used, see askZone.
+				delegations.put(child, DnsRecordCursor.TYPE_NS, response);
+				askZone(child, response);
+				return true;
+			}
+			if (response.getHeader().getAA() == 0) {
+				return false;
+			}
+			// An authoritative NODATA answer.
+			finish(zone, response);
+			return true;
+		}
+
+		/**
+		 * Follow the CNAME records of the answer section from the current name,
+		 * as long as it stays inside the zone that was asked. Past that, the
+		 * server is not authoritative and the rest of the chain is asked for
+		 * again.
+		 *
+		 * @return the name the chain leaves the response at, or null if the
+		 *         response answers the question itself.
+		 */
+		String followChain(String zone, DnsResponse response) {
+			String target = current;
+			DnsRecordCursor cursor = new DnsRecordCursor();
+			for (int i = 0; i <= MAX_CNAMES && isSubdomain(target, zone); i++) {
+				String next = null;
+				response.answers(cursor);
+				while (cursor.next()) {
+					if (!normalize(cursor.getName()).equals(target)) {
+						continue;
+					}
+					if (cursor.getType() == type) {
+						return null;
+					}
+					if (cursor.getType() == DnsRecordCursor.TYPE_CNAME) {
+						next = normalize(cursor.getRDataName());
+					}
+				}
+				if (next == null) {
+					return target.equals(current) ? null : target;
+				}
+				target = next;
+			}
+			return target;
+		}
+
+		void finish(String zone, DnsResponse response) {
+			if (chain.isEmpty()) {
+				result.complete(response);
+				return;
+			}
+			try {
+				result.complete(withChain(zone, response));
+			} catch (RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		}
+
+		void fail(Throwable error) {
+			result.completeExceptionally(error);
+		}
+
+		/**
+		 * Rewrite the final response so that it answers the original question:
+		 * the CNAME records of every response the chain passed through, then
+		 * the final answers and authority records. Names are written without
+		 * compression, since they come from different packets, and records
+		 * from outside the zone of their response are left out.
+		 */
+		DnsResponse withChain(String zone, DnsResponse last) {
+			ByteBuffer data = last.getData();
+			// The question may be longer than the one the last response asked.
+			int size = maxCopySize(last) + DnsNames.MAX_NAME_LENGTH + 4;
+			for (DnsResponse response : chain) {
+				size += maxCopySize(response);
+			}
+			ByteBuffer out = ByteBuffer.allocate(Math.min(size, MAX_MESSAGE_SIZE));
+			out.putShort(data.getShort(0));
+			out.put((byte) (data.get(2) & ~0x02));
+			out.put(data.get(3));
+			out.putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+			out.put(new DnsQuestion(name, qtype).getQuestion());
+
+			int answers = 0;
+			DnsRecordCursor cursor = new DnsRecordCursor();
+			for (int i = 0; i < chain.size(); i++) {
+				chain.get(i).answers(cursor);
+				while (cursor.next()) {
+					if (cursor.getType() == DnsRecordCursor.TYPE_CNAME
+							&& isSubdomain(normalize(cursor.getName()), chainZones.get(i))) {
+						writeRecord(cursor, out);
+						answers++;
+					}
+				}
+			}
+			last.answers(cursor);
+			while (cursor.next()) {
+				if (isSubdomain(normalize(cursor.getName()), zone)) {
+					writeRecord(cursor, out);
+					answers++;
+				}
+			}
+			int authorities = 0;
+			last.authorities(cursor);
+			while (cursor.next()) {
+				writeRecord(cursor, out);
+				authorities++;
+			}
+			out.putShort(6, (short) answers);
+			out.putShort(8, (short) authorities);
+			out.flip();
+			return new DnsResponse(ByteBuffer.wrap(Arrays.copyOf(out.array(), out.limit())));
+		}
+	}
+
+	// Add the addresses of the A records owned by any of the given names.
+	private void addAddresses(DnsRecordCursor cursor, List<String> names, List<InetSocketAddress> servers) {
+		while (cursor.next()) {
+			if (cursor.getType() != DnsRecordCursor.TYPE_A || cursor.getClazz() != DnsRecordCursor.CLASS_IN
+					|| !names.contains(normalize(cursor.getName()))) {
+				continue;
+			}
+			int address = cursor.getIPv4();
+			byte[] bytes = { (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8),
+					(byte) address };
+			try {
+				InetSocketAddress server = new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+				if (!servers.contains(server)) {
+					servers.add(server);
+				}
+			} catch (UnknownHostException e) {
+				// Cannot happen for a four byte address.
+			}
+		}
+	}
+
+	// An upper bound on the size of a response's answers and authority
+	// records once decompressed: a pointer of two bytes can stand for a whole
+	// name, and writeRecord copies at most three names per record.
+	private static int maxCopySize(DnsResponse response) {
+		DnsHeader header = response.getHeader();
+		return response.getData().limit()
+				+ (header.getANCOUNT() + header.getNSCOUNT()) * 3 * (DnsNames.MAX_NAME_LENGTH - 2);
+	}
+
+	// Copy a record, decompressing the names in its owner and its data.
+	private static void writeRecord(DnsRecordCursor record, ByteBuffer out) {
+		ByteBuffer packet = record.getPacket();
+		DnsNames.copyName(packet, record.getNameOffset(), out);
+		out.putShort((short) record.getType());
+		out.putShort((short) record.getClazz());
+		out.putInt(record.getTTL());
+		int lengthOffset = out.position();
+		out.putShort((short) 0);
+		int start = out.position();
+		int rdata = record.getRDataOffset();
+		switch (record.getType()) {
+		case DnsRecordCursor.TYPE_NS:
+		case DnsRecordCursor.TYPE_CNAME:
+		case DnsRecordCursor.TYPE_PTR:
+			DnsNames.copyName(packet, rdata, out);
+			break;
+		case DnsRecordCursor.TYPE_MX:
+			out.putShort((short) record.getPreference());
+			DnsNames.copyName(packet, rdata + 2, out);
+			break;
+		case DnsRecordCursor.TYPE_SRV:
+			// Priority, weight and port, then the target.
+			for (int i = 0; i < 6; i++) {
+				out.put(packet.get(rdata + i));
+			}
+			DnsNames.copyName(packet, rdata + 6, out);
+			break;
+		case DnsRecordCursor.TYPE_SOA:
+			DnsNames.copyName(packet, rdata, out);
+			int index = DnsNames.skipName(packet, rdata);
+			DnsNames.copyName(packet, index, out);
+			index = DnsNames.skipName(packet, index);
+			for (int i = 0; i < 20; i++) {
+				out.put(packet.get(index + i));
+			}
+			break;
+		default:
+			for (int i = 0; i < record.getRDataLength(); i++) {
+				out.put(packet.get(rdata + i));
+			}
+		}
+		out.putShort(lengthOffset, (short) (out.position() - start));
+	}
+}
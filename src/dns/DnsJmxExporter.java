@@ -0,0 +1,121 @@
+package dns;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers the metrics with the platform MBean server as one dynamic MBean,
+ * named dns:type=DnsMetrics,name=&lt;name&gt;, with one read-only long
+ * attribute per value of the snapshot. Attributes are read when a JMX client
+ * asks for them, and servers or types that appear later show up the next time
+ * the client fetches the MBean info.
+ */
+public class DnsJmxExporter implements DnsMetricsExporter {
+	private final ObjectName objectName;
+	private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+	/**
+	 * @param name : tells apart the resolvers of one process.
+	 */
+	public DnsJmxExporter(String name) throws IOException {
+		try {
+			this.objectName = new ObjectName("dns:type=DnsMetrics,name=" + ObjectName.quote(name));
+		} catch (JMException e) {
+			throw new IOException("\nERROR\tInvalid JMX name " + name, e);
+		}
+	}
+
+	@Override
+	public void start(DnsMetrics metrics) throws IOException {
+		try {
+			server.registerMBean(new MetricsBean(metrics), objectName);
+		} catch (JMException e) {
+			throw new IOException("\nERROR\tFailed to register " + objectName, e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			throw new IOException("\nERROR\tFailed to unregister " + objectName, e);
+		}
+	}
+
+	public ObjectName getObjectName() {
+		return this.objectName;
+	}
+
+	private static final class MetricsBean implements DynamicMBean {
+		private final DnsMetrics metrics;
+
+		MetricsBean(DnsMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Long value = metrics.snapshot().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			SortedMap<String, Long> values = metrics.snapshot();
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				Long value = values.get(attribute);
+				if (value != null) {
+					list.add(new Attribute(attribute, value));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) {
+			throw new UnsupportedOperationException("\nERROR\tDNS metrics are read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException("\nERROR\tDNS metrics have no operations");
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			SortedMap<String, Long> values = metrics.snapshot();
+			MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+			int i = 0;
+			for (Map.Entry<String, Long> entry : values.entrySet()) {
+				attributes[i++] = new MBeanAttributeInfo(entry.getKey(), "long", entry.getKey(), true, false,
+						false);
+			}
+			return new MBeanInfo(DnsMetrics.class.getName(), "DNS resolver metrics", attributes, null, null,
+					null);
+		}
+	}
+}
@@ -0,0 +1,380 @@
+package dns;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generator for DNS servers, built on the client's own UDP transport,
+ * so queries are encoded and responses decoded by the same code as every other
+ * lookup. It either sends queries at a fixed rate, cycling through a list of
+ * names, or replays a recorded trace of names and types with their original
+ * timing, and then reports the rate achieved, the latency percentiles, the
+ * timeouts and the RCODEs of the responses.
+ *
+ * The load is open-loop: each query has a planned send time, and it is sent
+ * then whether or not earlier queries have been answered. Its latency is
+ * measured from the planned time, not from when it was actually sent, so a
+ * server (or a generator) that falls behind shows up in the percentiles
+ * instead of silently lowering the rate, which is the coordinated omission a
+ * closed-loop generator suffers from.
+ *
+ * Queries are not retransmitted by default, so every lost query counts as a
+ * timeout. With -S, the queries go to an in-process DnsStubServer with the
+ * given latency and loss, so the tool can run without a network.
+ */
+public class DnsLoadGenerator implements Closeable {
+	private static final int DEFAULT_TIMEOUT = 2000;
+	private static final int DEFAULT_QPS = 1000;
+	private static final int DEFAULT_DURATION = 10;
+	private static final String DEFAULT_PORT = "53";
+	private static final String DEFAULT_REQUEST_TYPE = "A";
+
+	private final DnsUdpTransport transport;
+	private final InetSocketAddress server;
+	private final DnsHistogram latency = new DnsHistogram();
+	private final AtomicLongArray rcodes = new AtomicLongArray(16);
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAccumulator maxLag = new LongAccumulator(Math::max, 0);
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private int timeout = DEFAULT_TIMEOUT;
+	private int maxRetries;
+	private long sent;
+	private long startTime;
+	private long endTime;
+
+	/**
+	 * @param server : the address of the DNS server under load.
+	 */
+	public DnsLoadGenerator(InetSocketAddress server) throws IOException {
+		this.server = server;
+		this.transport = new DnsUdpTransport();
+		this.transport.setAdaptiveTimeouts(false);
+	}
+
+	/**
+	 * One query of a run: a name, a request type and, in a trace, its send
+	 * time relative to the start of the trace.
+	 */
+	public static final class Query {
+		private final long offset;
+		private final String name;
+		private final String qtype;
+
+		/**
+		 * @param offset : the send time in ns after the start of the trace; 0
+		 *               for queries sent at a fixed rate.
+		 * @param name   : the domain name to look up.
+		 * @param qtype  : the request type.
+		 */
+		public Query(long offset, String name, String qtype) {
+			this.offset = offset;
+			this.name = name;
+			this.qtype = qtype;
+		}
+	}
+
+	// The longest time to wait for each transmission, in ms.
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	// The number of retransmissions after the first one; 0 by default.
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Send queries at a fixed rate for the given time, cycling through the
+	 * queries in order, and wait for the last ones to be answered.
+	 *
+	 * @param queries  : the queries to send; their offsets are ignored.
+	 * @param qps      : the target rate, in queries per second.
+	 * @param duration : how long to send for, in seconds.
+	 */
+	public void runAtRate(List<Query> queries, int qps, int duration) throws InterruptedException {
+		long count = (long) qps * duration;
+		double interval = 1e9 / qps;
+		startTime = System.nanoTime();
+		for (long i = 0; i < count; i++) {
+			send(queries.get((int) (i % queries.size())), startTime + (long) (i * interval));
+		}
+		awaitOutstanding();
+	}
+
+	/**
+	 * Send the queries of a trace at their recorded times, and wait for the
+	 * last ones to be answered.
+	 *
+	 * @param trace : the queries, in the order of their offsets.
+	 * @param speed : how many times faster than recorded to replay the trace.
+	 */
+	public void replay(List<Query> trace, double speed) throws InterruptedException {
+		startTime = System.nanoTime();
+		for (Query query : trace) {
+			send(query, startTime + (long) (query.offset / speed));
+		}
+		awaitOutstanding();
+	}
+
+	// Wait for the planned time, then send the query and count its outcome.
+	private void send(Query query, long plannedTime) throws InterruptedException {
+		long now;
+		while ((now = System.nanoTime()) < plannedTime) {
+			LockSupport.parkNanos(plannedTime - now);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		maxLag.accumulate(now - plannedTime);
+		sent++;
+		outstanding.incrementAndGet();
+		transport.query(server, query.name, query.qtype, timeout, maxRetries).whenComplete((response, error) -> {
+			if (error == null) {
+				latency.record(System.nanoTime() - plannedTime);
+				rcodes.incrementAndGet(response.getHeader().getRCODE() & 0x0F);
+			} else if (DnsException.from(error).getReason() == DnsException.Reason.TIMEOUT) {
+				timeouts.increment();
+			} else {
+				failures.increment();
+			}
+			outstanding.decrementAndGet();
+		});
+	}
+
+	// Every query ends in a response, a timeout or a failure.
+	private void awaitOutstanding() throws InterruptedException {
+		while (outstanding.get() > 0) {
+			Thread.sleep(1);
+		}
+		endTime = System.nanoTime();
+	}
+
+	/**
+	 * Print the results of the last run: the rates sent and answered, the
+	 * latency percentiles, the timeouts and failures, and the responses by
+	 * RCODE.
+	 */
+	public void printReport(PrintStream out) {
+		double seconds = (endTime - startTime) / 1e9;
+		long answered = latency.getCount();
+		out.printf(Locale.ROOT, "Sent %d queries in %.3f seconds (%.0f qps)%n", sent, seconds, sent / seconds);
+		out.printf(Locale.ROOT, "Answered %d (%.0f qps), %d timeouts, %d failures%n", answered, answered / seconds,
+				timeouts.sum(), failures.sum());
+		out.printf(Locale.ROOT, "Latency (ms): mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n",
+				latency.getMean() / 1e6, latency.getValueAtPercentile(50) / 1e6,
+				latency.getValueAtPercentile(90) / 1e6, latency.getValueAtPercentile(99) / 1e6,
+				latency.getValueAtPercentile(99.9) / 1e6, latency.getMax() / 1e6);
+		out.printf(Locale.ROOT, "Largest send lag (ms): %.3f%n", maxLag.get() / 1e6);
+		for (int i = 0; i < rcodes.length(); i++) {
+			if (rcodes.get(i) != 0) {
+				out.println(DnsMetrics.rcodeName(i) + ": " + rcodes.get(i));
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		transport.close();
+	}
+
+	/**
+	 * Read the names to send at a fixed rate, one per line, each optionally
+	 * followed by its request type. Blank lines and lines starting with # are
+	 * skipped.
+	 */
+	public static List<Query> readNames(BufferedReader in, String defaultType) throws IOException {
+		List<Query> queries = new ArrayList<>();
+		for (String line; (line = in.readLine()) != null;) {
+			String[] fields = line.trim().split("\\s+");
+			if (!fields[0].isEmpty() && !fields[0].startsWith("#")) {
+				queries.add(new Query(0, fields[0], fields.length > 1 ? readType(fields[1]) : defaultType));
+			}
+		}
+		return queries;
+	}
+
+	/**
+	 * Read a trace to replay, one query per line: its time in seconds, the
+	 * name and optionally the request type. The times can be offsets or
+	 * timestamps; only the differences between them matter, and the trace is
+	 * replayed from the time on its first line. Blank lines and lines starting
+	 * with # are skipped.
+	 */
+	public static List<Query> readTrace(BufferedReader in, String defaultType) throws IOException {
+		List<Query> trace = new ArrayList<>();
+		double first = Double.NaN;
+		for (String line; (line = in.readLine()) != null;) {
+			String[] fields = line.trim().split("\\s+");
+			if (fields[0].isEmpty() || fields[0].startsWith("#")) {
+				continue;
+			}
+			if (fields.length < 2) {
+				throw new IOException("\nERROR\tThe trace line \"" + line + "\" has no name");
+			}
+			double time;
+			try {
+				time = Double.parseDouble(fields[0]);
+			} catch (NumberFormatException e) {
+				throw new IOException("\nERROR\tThe trace line \"" + line + "\" does not start with a time");
+			}
+			if (Double.isNaN(first)) {
+				first = time;
+			}
+			long offset = (long) ((time - first) * 1e9);
+			if (!trace.isEmpty() && offset < trace.get(trace.size() - 1).offset) {
+				throw new IOException("\nERROR\tThe trace is not in time order at \"" + line + "\"");
+			}
+			trace.add(new Query(offset, fields[1], fields.length > 2 ? readType(fields[2]) : defaultType));
+		}
+		return trace;
+	}
+
+	private static String readType(String type) {
+		type = type.toUpperCase(Locale.ROOT);
+		if (DnsQuestion.getTypeCode(type) == 0) {
+			throw new IllegalArgumentException("\nERROR\tUnsupported request type " + type);
+		}
+		return type;
+	}
+
+	/**
+	 * [-t timeout] [-r max-retries] [-p port] [-q type] [-Q qps] [-d seconds]
+	 * [-f names-file | -R trace-file [-x speed]] [-S latency-ms[,loss]]
+	 * [@server] [name]
+	 *
+	 * The server is given as for DnsClient; with -S it is replaced by a local
+	 * stub server. Without -f or -R, the name on the command line is sent.
+	 *
+	 * @param args : the command line arguments
+	 */
+	public static void main(String[] args) {
+		int timeout = DEFAULT_TIMEOUT;
+		int maxRetries = 0;
+		String port = DEFAULT_PORT;
+		String requestType = DEFAULT_REQUEST_TYPE;
+		int qps = DEFAULT_QPS;
+		int duration = DEFAULT_DURATION;
+		String namesFile = null;
+		String traceFile = null;
+		double speed = 1;
+		String stub = null;
+		String server = null;
+		String name = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-t")) {
+					timeout = Integer.parseInt(args[++i]) * 1000;
+				} else if (args[i].equals("-r")) {
+					maxRetries = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-p")) {
+					port = args[++i];
+				} else if (args[i].equals("-q")) {
+					requestType = readType(args[++i]);
+				} else if (args[i].equals("-Q")) {
+					qps = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-d")) {
+					duration = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-f")) {
+					namesFile = args[++i];
+				} else if (args[i].equals("-R")) {
+					traceFile = args[++i];
+				} else if (args[i].equals("-x")) {
+					speed = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("-S")) {
+					stub = args[++i];
+				} else if (args[i].startsWith("@")) {
+					server = args[i].substring(1);
+				} else {
+					name = args[i];
+				}
+			}
+			if (qps <= 0 || duration <= 0 || speed <= 0 || (server == null && stub == null)
+					|| (name == null && namesFile == null && traceFile == null)) {
+				throw new IllegalArgumentException();
+			}
+		} catch (RuntimeException e) {
+			System.out.println(e.getMessage() != null && e.getMessage().startsWith("\nERROR") ? e.getMessage()
+					: "\nERROR\tIncorrect input syntax: Please use the following Syntax: [-t timeout] [-r max-retries] "
+							+ "[-p port] [-q type] [-Q qps] [-d seconds] [-f names-file | -R trace-file [-x speed]] "
+							+ "[-S latency-ms[,loss]] [@server] [name].");
+			return;
+		}
+
+		DnsStubServer stubServer = null;
+		try {
+			InetSocketAddress address;
+			if (stub != null) {
+				String[] settings = stub.split(",");
+				stubServer = new DnsStubServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+				stubServer.setLatency(Integer.parseInt(settings[0]));
+				stubServer.setLoss(settings.length > 1 ? Double.parseDouble(settings[1]) : 0);
+				address = stubServer.getAddress();
+			} else {
+				InetAddress host = new DnsClient().getServerIPAddress(server);
+				if (host == null) {
+					return;
+				}
+				address = new InetSocketAddress(host, Integer.parseInt(port));
+			}
+
+			List<Query> queries;
+			if (traceFile != null) {
+				try (BufferedReader in = Files.newBufferedReader(Paths.get(traceFile))) {
+					queries = readTrace(in, requestType);
+				}
+			} else if (namesFile != null) {
+				try (BufferedReader in = Files.newBufferedReader(Paths.get(namesFile))) {
+					queries = readNames(in, requestType);
+				}
+			} else {
+				queries = List.of(new Query(0, name, requestType));
+			}
+			if (queries.isEmpty()) {
+				System.out.println("\nERROR\tThere are no queries to send");
+				return;
+			}
+
+			try (DnsLoadGenerator generator = new DnsLoadGenerator(address)) {
+				generator.setTimeout(timeout);
+				generator.setMaxRetries(maxRetries);
+				if (traceFile != null) {
+					System.out.println("Replaying " + queries.size() + " queries to " + address.getAddress()
+							.getHostAddress() + ":" + address.getPort() + " at " + speed + "x");
+					generator.replay(queries, speed);
+				} else {
+					System.out.println("Sending " + qps + " qps for " + duration + " seconds to "
+							+ address.getAddress().getHostAddress() + ":" + address.getPort());
+					generator.runAtRate(queries, qps, duration);
+				}
+				generator.printReport(System.out);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | RuntimeException e) {
+			System.out.println(e.getMessage());
+		} finally {
+			if (stubServer != null) {
+				try {
+					stubServer.close();
+				} catch (IOException e) {
+					// Nothing is left to report.
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,498 @@
+package dns;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Local overrides, answered before the cache and the servers. The source is
+ * a text file mixing hosts-style lines ({@code 10.0.0.1 db.internal db}) and
+ * master-file-style records ({@code www.internal. 300 IN CNAME db.internal.})
+ * of type A, NS, CNAME or MX, with $ORIGIN and $TTL directives. A name that
+ * has a CNAME answers every question with the CNAME, followed by the target's
+ * records when the target is also local, and may not have any other records.
+ * Any other name in the file answers the types it has no records of with an
+ * empty, authoritative NODATA response, so an overridden name is never
+ * partly answered by the servers.
+ *
+ * The source is compiled once into an index file next to it (the source path
+ * plus ".idx"): an open-addressing hash table of (name, qtype) keys, each
+ * pointing at the complete, authoritative response packet for that question,
+ * plus one entry per name, under type 0, for the types not listed.
+ * The index is memory-mapped, and it is reused as long as the source has the
+ * size and modification time recorded in it, so a restart does not parse the
+ * source again. A lookup hashes and compares the name in place and allocates
+ * nothing until it wraps the matching packet in a DnsResponse.
+ *
+ * {@link #reload()} recompiles the index if the source has changed and swaps
+ * it in at once; lookups running at that moment finish on the old one.
+ * {@link #watch(int)} does this periodically.
+ */
+public class DnsLocalZone implements Closeable {
+	public static final int DEFAULT_TTL = 3600;
+	private static final int MAGIC = 0x444E535A;
+	private static final int VERSION = 2;
+	// The type of the entry that answers the types a name has no entry for.
+	private static final int OTHER_TYPES = 0;
+	private static final int HEADER_SIZE = 32;
+	// QR, AA, RD and RA set, RCODE 0.
+	private static final short FLAGS = (short) 0x8580;
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	private final Path source;
+	private final Path indexFile;
+	private volatile ByteBuffer index;
+	private ScheduledExecutorService timer;
+
+	private DnsLocalZone(Path source) {
+		this.source = source;
+		this.indexFile = source.resolveSibling(source.getFileName() + ".idx");
+	}
+
+	/**
+	 * Load the overrides in a file, compiling its index if it is missing or out
+	 * of date.
+	 */
+	public static DnsLocalZone open(Path source) throws IOException {
+		DnsLocalZone zone = new DnsLocalZone(source);
+		zone.reload();
+		return zone;
+	}
+
+	/**
+	 * Compile and swap in a new index if the source has changed since the
+	 * current one was built.
+	 *
+	 * @return whether a new index was swapped in.
+	 */
+	public synchronized boolean reload() throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+		long size = attributes.size();
+		long modified = attributes.lastModifiedTime().toMillis();
+		ByteBuffer current = this.index;
+		if (current != null && isIndexOf(current, size, modified)) {
+			return false;
+		}
+		ByteBuffer mapped = map(indexFile);
+		if (mapped == null || !isIndexOf(mapped, size, modified)) {
+			mapped = compile(size, modified);
+		}
+		this.index = mapped;
+		return true;
+	}
+
+	/**
+	 * Check the source for changes every period, on a daemon thread, until
+	 * the zone is closed. A source that fails to compile leaves the previous
+	 * index in place.
+	 *
+	 * @param period : the time between two checks, in seconds.
+	 */
+	public synchronized void watch(int period) {
+		if (timer != null) {
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "dns-local-zone");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.scheduleWithFixedDelay(() -> {
+			try {
+				reload();
+			} catch (IOException | RuntimeException e) {
+				// Keep serving the previous index.
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * The local answer to a question.
+	 *
+	 * @return the response, or null if the question is not overridden.
+	 */
+	public DnsResponse lookup(String name, int qtype) {
+		ByteBuffer index = this.index;
+		int entry = find(index, name, qtype);
+		if (entry >= 0) {
+			return new DnsResponse(packetOf(index, entry));
+		}
+		entry = find(index, name, OTHER_TYPES);
+		if (entry < 0) {
+			return null;
+		}
+		// The shared answer asks type 0; copy it to ask the type that was asked.
+		ByteBuffer packet = packetOf(index, entry);
+		ByteBuffer copy = ByteBuffer.allocate(packet.remaining()).put(packet);
+		copy.putShort(DnsNames.skipName(copy, 12), (short) qtype);
+		return new DnsResponse(copy.flip());
+	}
+
+	// The number of entries in the index: one per overridden (name, qtype)
+	// question, and one per name for its other types.
+	public int size() {
+		return this.index.getInt(28);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+	}
+
+	private static ByteBuffer packetOf(ByteBuffer index, int entry) {
+		int packet = entry + 3 + DnsNames.u8(index, entry + 2) + 2;
+		return index.slice(packet, DnsNames.u16(index, packet - 2));
+	}
+
+	// The offset of the entry for the question, or -1. Allocates nothing.
+	private static int find(ByteBuffer index, String name, int qtype) {
+		int length = name.endsWith(".") ? name.length() - 1 : name.length();
+		int mask = index.getInt(24) - 1;
+		for (int slot = hash(name, length, qtype) & mask;; slot = (slot + 1) & mask) {
+			int entry = index.getInt(HEADER_SIZE + slot * 4);
+			if (entry == 0) {
+				return -1;
+			}
+			if (DnsNames.u16(index, entry) == qtype && nameEquals(index, entry + 2, name, length)) {
+				return entry;
+			}
+		}
+	}
+
+	private static boolean nameEquals(ByteBuffer index, int offset, String name, int length) {
+		if (DnsNames.u8(index, offset) != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (index.get(offset + 1 + i) != DnsNames.toLowerCase((byte) name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(CharSequence name, int length, int qtype) {
+		int h = qtype;
+		for (int i = 0; i < length; i++) {
+			h = h * 31 + DnsNames.toLowerCase((byte) name.charAt(i));
+		}
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean isIndexOf(ByteBuffer index, long size, long modified) {
+		return index.capacity() >= HEADER_SIZE && index.getInt(0) == MAGIC && index.getInt(4) == VERSION
+				&& index.getLong(8) == size && index.getLong(16) == modified;
+	}
+
+	// Map an index file, or return null if there is none.
+	private static ByteBuffer map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parse the source and lay out its index. The index is written to the
+	 * index file and mapped; if the file cannot be written, the index is kept
+	 * on the heap.
+	 */
+	private ByteBuffer compile(long size, long modified) throws IOException {
+		Map<DnsQueryKey, List<byte[]>> records = parse();
+		for (DnsQueryKey key : records.keySet()) {
+			if (key.qtype != DnsRecordCursor.TYPE_CNAME
+					&& records.containsKey(new DnsQueryKey(key.name, DnsRecordCursor.TYPE_CNAME, key.qclass))) {
+				throw new IOException("\nERROR\t" + key.name + " has a CNAME and other records in " + source);
+			}
+		}
+		Map<DnsQueryKey, List<byte[]>> answers = new LinkedHashMap<>();
+		for (Map.Entry<DnsQueryKey, List<byte[]>> entry : records.entrySet()) {
+			DnsQueryKey key = entry.getKey();
+			answers.put(key, entry.getValue());
+			if (key.qtype != DnsRecordCursor.TYPE_CNAME) {
+				answers.putIfAbsent(new DnsQueryKey(key.name, OTHER_TYPES, key.qclass), new ArrayList<>());
+				continue;
+			}
+			// Answer the usual questions for an alias with the CNAME and the
+			// target's records, and any other question with the CNAME alone.
+			byte[] cname = entry.getValue().get(0);
+			answers.put(new DnsQueryKey(key.name, OTHER_TYPES, key.qclass), entry.getValue());
+			String target = DnsNames.readName(ByteBuffer.wrap(cname), 12);
+			for (int qtype : new int[] { DnsRecordCursor.TYPE_A, DnsRecordCursor.TYPE_NS, DnsRecordCursor.TYPE_MX }) {
+				List<byte[]> chain = new ArrayList<>();
+				chain.add(cname);
+				List<byte[]> targets = records.get(new DnsQueryKey(target, qtype, DnsRecordCursor.CLASS_IN));
+				if (targets != null) {
+					for (byte[] record : targets) {
+						chain.add(withOwner(record, target));
+					}
+				}
+				answers.put(new DnsQueryKey(key.name, qtype, DnsRecordCursor.CLASS_IN), chain);
+			}
+		}
+
+		int slots = Integer.highestOneBit(Math.max(answers.size(), 1) * 2 - 1) * 2;
+		int length = HEADER_SIZE + slots * 4;
+		for (Map.Entry<DnsQueryKey, List<byte[]>> entry : answers.entrySet()) {
+			length += entryLength(entry.getKey(), entry.getValue());
+		}
+		ByteBuffer index = ByteBuffer.allocate(length);
+		index.putInt(MAGIC).putInt(VERSION).putLong(size).putLong(modified).putInt(slots).putInt(answers.size());
+		index.position(HEADER_SIZE + slots * 4);
+		for (Map.Entry<DnsQueryKey, List<byte[]>> entry : answers.entrySet()) {
+			DnsQueryKey key = entry.getKey();
+			int offset = index.position();
+			for (int slot = hash(key.name, key.name.length(), key.qtype) & (slots - 1);; slot = (slot + 1)
+					& (slots - 1)) {
+				if (index.getInt(HEADER_SIZE + slot * 4) == 0) {
+					index.putInt(HEADER_SIZE + slot * 4, offset);
+					break;
+				}
+			}
+			writeEntry(key, entry.getValue(), index);
+		}
+		index.flip();
+
+		Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				while (index.hasRemaining()) {
+					channel.write(index);
+				}
+			}
+			Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return map(indexFile);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			return index.rewind();
+		}
+	}
+
+	// qtype (2) | name length (1) | name | packet length (2) | packet
+	private static int entryLength(DnsQueryKey key, List<byte[]> records) {
+		int length = 2 + 1 + key.name.length() + 2 + 12 + key.name.length() + 2 + 4;
+		for (byte[] record : records) {
+			length += isAtQuestion(record) ? record.length : record.length - 2;
+		}
+		return length;
+	}
+
+	// Records are stored without their owner name; the first owner points at
+	// the question and the others carry their name in front of the record.
+	private static void writeEntry(DnsQueryKey key, List<byte[]> records, ByteBuffer index) {
+		index.putShort((short) key.qtype).put((byte) key.name.length());
+		for (int i = 0; i < key.name.length(); i++) {
+			index.put((byte) key.name.charAt(i));
+		}
+		int lengthOffset = index.position();
+		index.putShort((short) 0);
+		int start = index.position();
+		index.putShort((short) 0).putShort(FLAGS).putShort((short) 1).putShort((short) records.size())
+				.putShort((short) 0).putShort((short) 0);
+		writeName(key.name, index);
+		index.putShort((short) key.qtype).putShort((short) DnsRecordCursor.CLASS_IN);
+		for (byte[] record : records) {
+			if (isAtQuestion(record)) {
+				index.putShort((short) 0xC00C).put(record, 2, record.length - 2);
+			} else {
+				index.put(record, 2, record.length - 2);
+			}
+		}
+		index.putShort(lengthOffset, (short) (index.position() - start));
+	}
+
+	/**
+	 * Read the source into records grouped by question. A record is kept as
+	 * two zero bytes followed by its type, class, TTL and data, so the owner
+	 * can be written as a pointer to the question; comments start with # or
+	 * ;.
+	 */
+	private Map<DnsQueryKey, List<byte[]>> parse() throws IOException {
+		Map<DnsQueryKey, List<byte[]>> records = new LinkedHashMap<>();
+		String origin = "";
+		long ttl = DEFAULT_TTL;
+		int lineNumber = 0;
+		try (BufferedReader in = Files.newBufferedReader(source)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				int comment = commentStart(line);
+				String[] tokens = WHITESPACE.split((comment >= 0 ? line.substring(0, comment) : line).trim());
+				if (tokens[0].isEmpty()) {
+					continue;
+				}
+				try {
+					if (tokens[0].equalsIgnoreCase("$ORIGIN")) {
+						origin = absolute(tokens[1], "");
+					} else if (tokens[0].equalsIgnoreCase("$TTL")) {
+						ttl = Long.parseLong(tokens[1]);
+					} else if (isIPv4(tokens[0])) {
+						// A hosts line: an address and the names that have it.
+						for (int i = 1; i < tokens.length; i++) {
+							add(records, absolute(tokens[i], origin), DnsRecordCursor.TYPE_A, ttl, tokens[0]);
+						}
+					} else if (!tokens[0].contains(":")) {
+						parseRecord(records, tokens, origin, ttl);
+					}
+				} catch (RuntimeException e) {
+					throw new IOException("\nERROR\tLine " + lineNumber + " of " + source + " is malformed", e);
+				}
+			}
+		}
+		return records;
+	}
+
+	// name [ttl] [IN] type data...
+	private static void parseRecord(Map<DnsQueryKey, List<byte[]>> records, String[] tokens, String origin,
+			long ttl) {
+		String name = tokens[0].equals("@") ? origin : absolute(tokens[0], origin);
+		int i = 1;
+		if (tokens[i].chars().allMatch(Character::isDigit)) {
+			ttl = Long.parseLong(tokens[i++]);
+		}
+		if (tokens[i].equalsIgnoreCase("IN")) {
+			i++;
+		}
+		String type = tokens[i++].toUpperCase(Locale.ROOT);
+		switch (type) {
+		case "A":
+			add(records, name, DnsRecordCursor.TYPE_A, ttl, tokens[i]);
+			break;
+		case "NS":
+			add(records, name, DnsRecordCursor.TYPE_NS, ttl, absolute(tokens[i], origin));
+			break;
+		case "CNAME":
+			add(records, name, DnsRecordCursor.TYPE_CNAME, ttl, absolute(tokens[i], origin));
+			break;
+		case "MX":
+			add(records, name, DnsRecordCursor.TYPE_MX, ttl, tokens[i] + " " + absolute(tokens[i + 1], origin));
+			break;
+		default:
+			// Other types are not served locally.
+			break;
+		}
+	}
+
+	private static void add(Map<DnsQueryKey, List<byte[]>> records, String name, int qtype, long ttl, String data) {
+		if (!DnsNames.isValidName(name)) {
+			throw new IllegalArgumentException("\nERROR\tInvalid name " + name);
+		}
+		ByteBuffer rdata = ByteBuffer.allocate(2 + 255);
+		switch (qtype) {
+		case DnsRecordCursor.TYPE_A:
+			String[] octets = data.split("\\.");
+			if (octets.length != 4) {
+				throw new IllegalArgumentException("\nERROR\tInvalid address " + data);
+			}
+			for (String octet : octets) {
+				int value = Integer.parseInt(octet);
+				if (value < 0 || value > 255) {
+					throw new IllegalArgumentException("\nERROR\tInvalid address " + data);
+				}
+				rdata.put((byte) value);
+			}
+			break;
+		case DnsRecordCursor.TYPE_MX:
+			String[] fields = data.split(" ");
+			rdata.putShort((short) Integer.parseInt(fields[0]));
+			writeName(fields[1], rdata);
+			break;
+		default:
+			writeName(data, rdata);
+			break;
+		}
+		rdata.flip();
+		byte[] record = new byte[2 + 10 + rdata.remaining()];
+		ByteBuffer.wrap(record).putShort((short) 0).putShort((short) qtype).putShort((short) DnsRecordCursor.CLASS_IN)
+				.putInt((int) Math.min(ttl, Integer.MAX_VALUE)).putShort((short) rdata.remaining()).put(rdata);
+		DnsQueryKey key = new DnsQueryKey(name, qtype, DnsRecordCursor.CLASS_IN);
+		List<byte[]> list = records.computeIfAbsent(key, k -> new ArrayList<>());
+		if (qtype == DnsRecordCursor.TYPE_CNAME) {
+			// A name has one CNAME; the last one wins.
+			list.clear();
+		}
+		list.add(record);
+	}
+
+	private static boolean isAtQuestion(byte[] record) {
+		return record[0] == 0 && record[1] == 0;
+	}
+
+	// Put the target's name in front of a record whose owner is the question.
+	private static byte[] withOwner(byte[] record, String owner) {
+		ByteBuffer out = ByteBuffer.allocate(2 + owner.length() + 2 + record.length - 2);
+		out.putShort((short) 1);
+		writeName(owner, out);
+		out.put(record, 2, record.length - 2);
+		return out.array();
+	}
+
+	private static String absolute(String name, String origin) {
+		if (name.endsWith(".")) {
+			return name.substring(0, name.length() - 1).toLowerCase(Locale.ROOT);
+		}
+		return (origin.isEmpty() ? name : name + "." + origin).toLowerCase(Locale.ROOT);
+	}
+
+	private static int commentStart(String line) {
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '#' || c == ';') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Four dot-separated groups of one to three digits.
+	private static boolean isIPv4(String token) {
+		int groups = 1;
+		int digits = 0;
+		for (int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			if (c == '.' && digits > 0) {
+				groups++;
+				digits = 0;
+			} else if (c >= '0' && c <= '9' && digits < 3) {
+				digits++;
+			} else {
+				return false;
+			}
+		}
+		return groups == 4 && digits > 0;
+	}
+
+	private static void writeName(String name, ByteBuffer out) {
+		for (String label : name.split("\\.")) {
+			if (!label.isEmpty()) {
+				out.put((byte) label.length());
+				for (int i = 0; i < label.length(); i++) {
+					out.put((byte) label.charAt(i));
+				}
+			}
+		}
+		out.put((byte) 0);
+	}
+}
@@ -0,0 +1,207 @@
+package dns;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The counters, latency histograms and gauges of a resolver. Queries are
+ * counted per upstream server by the transports, and per request type by the
+ * resolver, from the call to resolve until its future completes. Every
+ * counter is a LongAdder or an atomic array slot, so recording never locks.
+ *
+ * Metrics are off unless a resolver is given an enabled instance; the
+ * instance returned by {@link #disabled()} records nothing, and the hot paths
+ * skip all their bookkeeping for it after one field check.
+ *
+ * {@link #snapshot()} flattens everything into named values, which is what
+ * the exporters publish.
+ */
+public class DnsMetrics {
+	private static final DnsMetrics DISABLED = new DnsMetrics(false);
+	private static final String[] RCODE_NAMES = { "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP",
+			"REFUSED" };
+
+	private final boolean enabled;
+	private final ConcurrentHashMap<InetSocketAddress, Stats> servers = new ConcurrentHashMap<>();
+	private final AtomicReferenceArray<Stats> types = new AtomicReferenceArray<>(256);
+	private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+	public DnsMetrics() {
+		this(true);
+	}
+
+	private DnsMetrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public static DnsMetrics disabled() {
+		return DISABLED;
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * The statistics of queries sent to one server.
+	 *
+	 * @return the statistics, or null if metrics are disabled.
+	 */
+	public Stats server(InetSocketAddress server) {
+		if (!enabled) {
+			return null;
+		}
+		Stats stats = servers.get(server);
+		return stats != null ? stats : servers.computeIfAbsent(server, s -> new Stats());
+	}
+
+	/**
+	 * The statistics of lookups of one request type. Types above 255 share the
+	 * slot of type 0.
+	 *
+	 * @return the statistics, or null if metrics are disabled.
+	 */
+	public Stats type(int qtype) {
+		if (!enabled) {
+			return null;
+		}
+		int index = qtype > 0 && qtype < 256 ? qtype : 0;
+		Stats stats = types.get(index);
+		if (stats == null) {
+			types.compareAndSet(index, null, new Stats());
+			stats = types.get(index);
+		}
+		return stats;
+	}
+
+	// Publish a value that is read when the metrics are exported.
+	public void gauge(String name, LongSupplier value) {
+		if (enabled) {
+			gauges.put(name, value);
+		}
+	}
+
+	/**
+	 * Every metric as a named value: server.&lt;address&gt;.* and
+	 * type.&lt;qtype&gt;.* counters, RCODE counts and latency percentiles in
+	 * microseconds, followed by the gauges.
+	 */
+	public SortedMap<String, Long> snapshot() {
+		SortedMap<String, Long> values = new TreeMap<>();
+		for (Map.Entry<InetSocketAddress, Stats> entry : servers.entrySet()) {
+			InetSocketAddress address = entry.getKey();
+			entry.getValue().addTo("server." + address.getAddress().getHostAddress() + ":" + address.getPort(),
+					values);
+		}
+		for (int i = 0; i < types.length(); i++) {
+			Stats stats = types.get(i);
+			if (stats != null) {
+				stats.addTo("type." + typeName(i), values);
+			}
+		}
+		for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+			values.put(gauge.getKey(), gauge.getValue().getAsLong());
+		}
+		return values;
+	}
+
+	private static String typeName(int qtype) {
+		return DnsRecordType.nameOf(qtype);
+	}
+
+	// The mnemonic of an RCODE, or RCODEn for the ones without a name here.
+	static String rcodeName(int rcode) {
+		return rcode < RCODE_NAMES.length ? RCODE_NAMES[rcode] : "RCODE" + rcode;
+	}
+
+	/**
+	 * Counters for one server or one request type. Queries that end in neither
+	 * a response nor a timeout count as failures.
+	 */
+	public static final class Stats {
+		private final LongAdder queries = new LongAdder();
+		private final LongAdder retries = new LongAdder();
+		private final LongAdder timeouts = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final AtomicLongArray rcodes = new AtomicLongArray(16);
+		private final DnsHistogram latency = new DnsHistogram();
+
+		public void recordQuery() {
+			queries.increment();
+		}
+
+		public void recordRetry() {
+			retries.increment();
+		}
+
+		public void recordTimeout() {
+			timeouts.increment();
+		}
+
+		public void recordFailure() {
+			failures.increment();
+		}
+
+		/**
+		 * @param rcode   : the RCODE of the response.
+		 * @param latency : the time from the first transmission, in ns.
+		 */
+		public void recordResponse(int rcode, long latency) {
+			rcodes.incrementAndGet(rcode & 0x0F);
+			this.latency.record(latency);
+		}
+
+		public long getQueries() {
+			return queries.sum();
+		}
+
+		public long getRetries() {
+			return retries.sum();
+		}
+
+		public long getTimeouts() {
+			return timeouts.sum();
+		}
+
+		public long getFailures() {
+			return failures.sum();
+		}
+
+		public long getRcodeCount(int rcode) {
+			return rcodes.get(rcode & 0x0F);
+		}
+
+		public DnsHistogram getLatency() {
+			return this.latency;
+		}
+
+		void addTo(String prefix, SortedMap<String, Long> values) {
+			values.put(prefix + ".queries", getQueries());
+			values.put(prefix + ".retries", getRetries());
+			values.put(prefix + ".timeouts", getTimeouts());
+			values.put(prefix + ".failures", getFailures());
+			for (int i = 0; i < rcodes.length(); i++) {
+				long count = rcodes.get(i);
+				if (count != 0) {
+					values.put(prefix + ".rcode." + rcodeName(i), count);
+				}
+			}
+			values.put(prefix + ".latency.count", latency.getCount());
+			values.put(prefix + ".latency.mean_us", TimeUnit.NANOSECONDS.toMicros(latency.getMean()));
+			values.put(prefix + ".latency.p50_us", TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(50)));
+			values.put(prefix + ".latency.p90_us", TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(90)));
+			values.put(prefix + ".latency.p99_us", TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99)));
+			values.put(prefix + ".latency.p999_us",
+					TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99.9)));
+			values.put(prefix + ".latency.max_us", TimeUnit.NANOSECONDS.toMicros(latency.getMax()));
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Publishes a DnsMetrics instance somewhere outside the process. Exporters
+ * read {@link DnsMetrics#snapshot()} when they publish, so they cost nothing
+ * on the query path. Closing an exporter stops publishing.
+ *
+ * @see DnsJmxExporter
+ * @see DnsTextExporter
+ */
+public interface DnsMetricsExporter extends Closeable {
+	void start(DnsMetrics metrics) throws IOException;
+}
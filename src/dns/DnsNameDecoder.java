@@ -0,0 +1,154 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodes the names of one packet into dotted form, remembering each suffix
+ * it decodes by its offset. In a response with dozens of records under the
+ * same zone, the owner names and most of the names in the record data end in
+ * a pointer to the zone name, or to a name that does, so the shared suffix is
+ * decoded once and then copied from the memo; a name that is nothing but a
+ * pointer is returned without building a String at all.
+ *
+ * Names are read with the same checks as DnsNames. The memo has a fixed number
+ * of slots and simply stops growing when they run out. A decoder is not
+ * thread-safe, and must be reset whenever the packet it reads changes.
+ */
+public final class DnsNameDecoder {
+	private static final int SLOTS = 64;
+	private static final int MAX_SIZE = SLOTS * 3 / 4;
+	// Pointers hold 14 bits, so no pointer can reach a suffix beyond this.
+	private static final int POINTER_RANGE = 1 << 14;
+
+	// The offset of each remembered suffix plus one, or 0 for a free slot.
+	private final int[] offsets = new int[SLOTS];
+	private final String[] suffixes = new String[SLOTS];
+	// The suffixes of the name being decoded, and where they start in it.
+	private final int[] pendingOffsets = new int[DnsNames.MAX_POINTERS + 1];
+	private final int[] pendingStarts = new int[DnsNames.MAX_POINTERS + 1];
+	private final StringBuilder builder = new StringBuilder(64);
+	private ByteBuffer packet;
+	private int size;
+
+	/**
+	 * Forget every remembered suffix and decode the names of another packet.
+	 *
+	 * @return this decoder.
+	 */
+	public DnsNameDecoder reset(ByteBuffer packet) {
+		this.packet = packet;
+		if (size > 0) {
+			Arrays.fill(offsets, 0);
+			Arrays.fill(suffixes, null);
+			size = 0;
+		}
+		return this;
+	}
+
+	/**
+	 * The dotted form of the name at the given offset, following any
+	 * compression pointers.
+	 *
+	 * @see DnsNames#readName(ByteBuffer, int)
+	 */
+	public String readName(int index) {
+		// A name that starts with a pointer is the name it points to.
+		for (int pointers = 1; (DnsNames.u8(packet, index) & 0xC0) == 0xC0; pointers++) {
+			index = DnsNames.followPointer(packet, index, pointers);
+		}
+		String name = get(index);
+		if (name == null) {
+			builder.setLength(0);
+			appendName(index, builder);
+			name = get(index);
+			if (name == null) {
+				name = builder.toString();
+			}
+		}
+		return name;
+	}
+
+	/**
+	 * Append the dotted form of the name at the given offset, following any
+	 * compression pointers. The root name appends nothing.
+	 *
+	 * @see DnsNames#appendName(ByteBuffer, int, StringBuilder)
+	 */
+	public StringBuilder appendName(int index, StringBuilder name) {
+		boolean first = true;
+		boolean suffix = true;
+		int length = 0;
+		int pointers = 0;
+		int pending = 0;
+		int len;
+		while ((len = DnsNames.u8(packet, index)) != 0) {
+			if ((len & 0xC0) == 0xC0) {
+				index = DnsNames.followPointer(packet, index, ++pointers);
+				suffix = true;
+				continue;
+			}
+			if (suffix) {
+				String known = get(index);
+				if (known != null) {
+					// The wire form of a dotted suffix is two bytes longer.
+					if (length + known.length() + 2 > DnsNames.MAX_NAME_LENGTH) {
+						throw new RuntimeException(
+								"\nERROR\tThe name is longer than " + DnsNames.MAX_NAME_LENGTH + " bytes");
+					}
+					name.append(first ? "" : ".").append(known);
+					break;
+				}
+				if (index < POINTER_RANGE) {
+					pendingOffsets[pending] = index;
+					pendingStarts[pending++] = first ? name.length() : name.length() + 1;
+				}
+				suffix = false;
+			}
+			length = DnsNames.checkLabel(packet, index, len, length);
+			if (!first) {
+				name.append('.');
+			}
+			for (int i = 1; i <= len; i++) {
+				name.append((char) (packet.get(index + i) & 0xff));
+			}
+			first = false;
+			index += len + 1;
+		}
+		for (int i = 0; i < pending; i++) {
+			put(pendingOffsets[i], name.substring(pendingStarts[i]));
+		}
+		return name;
+	}
+
+	private String get(int offset) {
+		for (int slot = slotOf(offset);; slot = (slot + 1) & (SLOTS - 1)) {
+			if (offsets[slot] == offset + 1) {
+				return suffixes[slot];
+			}
+			if (offsets[slot] == 0) {
+				return null;
+			}
+		}
+	}
+
+	private void put(int offset, String suffix) {
+		if (size == MAX_SIZE) {
+			return;
+		}
+		int slot = slotOf(offset);
+		while (offsets[slot] != 0) {
+			if (offsets[slot] == offset + 1) {
+				return;
+			}
+			slot = (slot + 1) & (SLOTS - 1);
+		}
+		offsets[slot] = offset + 1;
+		suffixes[slot] = suffix;
+		size++;
+	}
+
+	private static int slotOf(int offset) {
+		return (offset * 0x9E3779B1) >>> 26;
+	}
+}
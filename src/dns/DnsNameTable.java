@@ -0,0 +1,275 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A table of interned domain names, stored the way DNS compression stores
+ * them: each name is a node holding its first label in wire form and the id
+ * of the node for the rest of the name. "www.example.com" and
+ * "mail.example.com" therefore share the nodes of "example.com" and "com",
+ * and a name that is cached a thousand times is held once. The root name is
+ * node 0.
+ *
+ * Nodes are reference counted. {@link #intern(ByteBuffer, int)} adds a
+ * reference to the name it returns, each node holds one on its parent, and
+ * {@link #release(int)} frees a node once nothing refers to it, so the table
+ * only holds the names of live records. Labels compare case-insensitively; a
+ * name keeps the case it was first interned with.
+ *
+ * Interning and releasing take a lock. Reading a name does not, which is safe
+ * as long as the caller holds a reference to it and reached the id through a
+ * happens-before edge with the intern call, such as a lock the caller and the
+ * interning thread share.
+ */
+public class DnsNameTable {
+	public static final int ROOT = 0;
+	// A name of at most 255 bytes has at most 127 labels.
+	private static final int MAX_LABELS = DnsNames.MAX_NAME_LENGTH / 2;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile Nodes nodes = new Nodes(256);
+	// Only touched under the lock: the hash chains and the free list.
+	private int[] buckets = new int[256];
+	private int freeList;
+	private int highWater = 1;
+	private int size;
+
+	/**
+	 * Intern the name at the given offset of a packet, following compression
+	 * pointers, and add a reference to it. The name is read with the same
+	 * checks as DnsNames.
+	 *
+	 * @return the id of the name.
+	 */
+	public int intern(ByteBuffer packet, int index) {
+		int[] offsets = new int[MAX_LABELS];
+		int count = 0;
+		int length = 0;
+		int pointers = 0;
+		int len = DnsNames.u8(packet, index);
+		while (len != 0) {
+			if ((len & 0xC0) == 0xC0) {
+				index = DnsNames.followPointer(packet, index, ++pointers);
+			} else {
+				length = DnsNames.checkLabel(packet, index, len, length);
+				offsets[count++] = index;
+				index += len + 1;
+			}
+			len = DnsNames.u8(packet, index);
+		}
+		if (count == 0) {
+			return ROOT;
+		}
+		lock.lock();
+		try {
+			int id = ROOT;
+			for (int i = count - 1; i >= 0; i--) {
+				id = child(id, packet, offsets[i]);
+			}
+			nodes.refs[id]++;
+			return id;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Drop a reference taken by intern.
+	public void release(int id) {
+		lock.lock();
+		try {
+			Nodes n = nodes;
+			while (id != ROOT && --n.refs[id] == 0) {
+				int parent = n.parent[id];
+				unlink(n, id);
+				n.label[id] = null;
+				n.next[id] = freeList;
+				freeList = id;
+				size--;
+				id = parent;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// The length of the name in uncompressed wire form.
+	public int wireLength(int id) {
+		Nodes n = nodes;
+		int length = 1;
+		for (; id != ROOT; id = n.parent[id]) {
+			length += n.label[id].length;
+		}
+		return length;
+	}
+
+	// Write the name in uncompressed wire form at the buffer's position.
+	public void write(int id, ByteBuffer out) {
+		Nodes n = nodes;
+		for (; id != ROOT; id = n.parent[id]) {
+			out.put(n.label[id]);
+		}
+		out.put((byte) 0);
+	}
+
+	public StringBuilder append(int id, StringBuilder name) {
+		Nodes n = nodes;
+		for (boolean first = true; id != ROOT; id = n.parent[id], first = false) {
+			if (!first) {
+				name.append('.');
+			}
+			byte[] label = n.label[id];
+			for (int i = 1; i < label.length; i++) {
+				name.append((char) (label[i] & 0xff));
+			}
+		}
+		return name;
+	}
+
+	// Whether the name is the given dotted name, ignoring case.
+	public boolean equalsName(int id, String name) {
+		Nodes n = nodes;
+		int index = 0;
+		for (; id != ROOT; id = n.parent[id]) {
+			byte[] label = n.label[id];
+			if (index > 0) {
+				if (index >= name.length() || name.charAt(index++) != '.') {
+					return false;
+				}
+			}
+			if (index + label.length - 1 > name.length()) {
+				return false;
+			}
+			for (int i = 1; i < label.length; i++) {
+				if (DnsNames.toLowerCase(label[i]) != DnsNames.toLowerCase((byte) name.charAt(index++))) {
+					return false;
+				}
+			}
+		}
+		return index == name.length() || (index == name.length() - 1 && name.charAt(index) == '.');
+	}
+
+	// The number of nodes, that is of distinct name suffixes, in the table.
+	public int size() {
+		lock.lock();
+		try {
+			return this.size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Find or create the node for a label under a parent. Called under the
+	// lock.
+	private int child(int parent, ByteBuffer packet, int offset) {
+		int hash = hash(parent, packet, offset);
+		Nodes n = nodes;
+		for (int id = buckets[hash & (buckets.length - 1)]; id != ROOT; id = n.next[id]) {
+			if (n.parent[id] == parent && labelEquals(n.label[id], packet, offset)) {
+				return id;
+			}
+		}
+		if (++size > buckets.length * 3 / 4) {
+			rehash(n);
+		}
+		int id;
+		if (freeList != ROOT) {
+			id = freeList;
+			freeList = n.next[id];
+		} else {
+			if (highWater == n.parent.length) {
+				n = n.grow();
+				nodes = n;
+			}
+			id = highWater++;
+		}
+		byte[] label = new byte[DnsNames.u8(packet, offset) + 1];
+		for (int i = 0; i < label.length; i++) {
+			label[i] = packet.get(offset + i);
+		}
+		n.label[id] = label;
+		n.parent[id] = parent;
+		n.refs[id] = 0;
+		n.hash[id] = hash;
+		if (parent != ROOT) {
+			n.refs[parent]++;
+		}
+		int bucket = hash & (buckets.length - 1);
+		n.next[id] = buckets[bucket];
+		buckets[bucket] = id;
+		return id;
+	}
+
+	private void unlink(Nodes n, int id) {
+		int bucket = n.hash[id] & (buckets.length - 1);
+		if (buckets[bucket] == id) {
+			buckets[bucket] = n.next[id];
+			return;
+		}
+		for (int prev = buckets[bucket]; prev != ROOT; prev = n.next[prev]) {
+			if (n.next[prev] == id) {
+				n.next[prev] = n.next[id];
+				return;
+			}
+		}
+	}
+
+	private void rehash(Nodes n) {
+		buckets = new int[buckets.length * 2];
+		for (int id = 1; id < highWater; id++) {
+			if (n.label[id] != null) {
+				int bucket = n.hash[id] & (buckets.length - 1);
+				n.next[id] = buckets[bucket];
+				buckets[bucket] = id;
+			}
+		}
+	}
+
+	private static int hash(int parent, ByteBuffer packet, int offset) {
+		int len = DnsNames.u8(packet, offset);
+		int h = parent * 31 + len;
+		for (int i = 1; i <= len; i++) {
+			h = h * 31 + DnsNames.toLowerCase(packet.get(offset + i));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean labelEquals(byte[] label, ByteBuffer packet, int offset) {
+		if (label.length != DnsNames.u8(packet, offset) + 1) {
+			return false;
+		}
+		for (int i = 1; i < label.length; i++) {
+			if (DnsNames.toLowerCase(label[i]) != DnsNames.toLowerCase(packet.get(offset + i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final class Nodes {
+		final int[] parent;
+		final int[] refs;
+		final int[] next;
+		final int[] hash;
+		final byte[][] label;
+
+		Nodes(int capacity) {
+			this(new int[capacity], new int[capacity], new int[capacity], new int[capacity], new byte[capacity][]);
+		}
+
+		Nodes(int[] parent, int[] refs, int[] next, int[] hash, byte[][] label) {
+			this.parent = parent;
+			this.refs = refs;
+			this.next = next;
+			this.hash = hash;
+			this.label = label;
+		}
+
+		Nodes grow() {
+			int capacity = parent.length * 2;
+			return new Nodes(Arrays.copyOf(parent, capacity), Arrays.copyOf(refs, capacity),
+					Arrays.copyOf(next, capacity), Arrays.copyOf(hash, capacity), Arrays.copyOf(label, capacity));
+		}
+	}
+}
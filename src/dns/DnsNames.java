@@ -0,0 +1,264 @@
+package dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Static helpers for reading wire-format data straight out of a DNS packet.
+ * Every method takes an absolute offset into the buffer and never touches the
+ * buffer's position or limit, so the same packet can be read by several
+ * cursors at once. Multi-byte fields are always read big-endian, whatever
+ * byte order the buffer has been set to.
+ *
+ * Names come from untrusted packets, so they are read in a loop that checks
+ * every step: labels must be of the plain kind and lie within the packet,
+ * a name may not be longer than 255 bytes, and compression pointers must
+ * point back to an earlier offset, at most MAX_POINTERS times per name. A
+ * pointer loop or an overlong name ends in a RuntimeException, a name that
+ * runs past the end of the packet in an IndexOutOfBoundsException.
+ */
+public final class DnsNames {
+	public static final int MAX_NAME_LENGTH = 255;
+	// A name has at most 127 labels, and needs no more pointers than that.
+	public static final int MAX_POINTERS = 127;
+
+	private DnsNames() {
+	}
+
+	public static int u8(ByteBuffer packet, int index) {
+		return packet.get(index) & 0xff;
+	}
+
+	public static int u16(ByteBuffer packet, int index) {
+		return ((packet.get(index) & 0xff) << 8) | (packet.get(index + 1) & 0xff);
+	}
+
+	public static int u32(ByteBuffer packet, int index) {
+		return (u16(packet, index) << 16) | u16(packet, index + 2);
+	}
+
+	// Domain names compare case-insensitively, but only for ASCII letters.
+	public static int toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+	/**
+	 * Check that a response echoes exactly one question, equal to the encoded
+	 * question apart from the case of the letters in the name.
+	 *
+	 * @param packet   : the response data, starting at offset 0.
+	 * @param question : the question as it was sent.
+	 */
+	public static boolean questionEquals(ByteBuffer packet, byte[] question) {
+		if (packet.limit() < 12 + question.length || u16(packet, 4) != 1) {
+			return false;
+		}
+		for (int i = 0; i < question.length; i++) {
+			if (toLowerCase(packet.get(12 + i)) != toLowerCase(question[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Skip over a (possibly compressed) domain name without decoding it. The
+	 * returned offset is the first byte after the name as it is laid out at the
+	 * given position: after the terminating zero label, or after the first
+	 * compression pointer.
+	 *
+	 * @param packet : the packet data.
+	 * @param index  : the offset of the first label of the name.
+	 * @return the offset of the first byte after the name.
+	 */
+	public static int skipName(ByteBuffer packet, int index) {
+		int length = 0;
+		int len = u8(packet, index);
+		while (len != 0) {
+			if ((len & 0xC0) == 0xC0) {
+				return index + 2;
+			}
+			length = checkLabel(packet, index, len, length);
+			index += len + 1;
+			len = u8(packet, index);
+		}
+		return index + 1;
+	}
+
+	/**
+	 * Append the dotted form of the name at the given offset, following any
+	 * compression pointers. The root name appends nothing.
+	 *
+	 * @param packet : the packet data.
+	 * @param index  : the offset of the first label of the name.
+	 * @param name   : the builder the name is appended to.
+	 * @return the builder, for chaining.
+	 */
+	public static StringBuilder appendName(ByteBuffer packet, int index, StringBuilder name) {
+		boolean first = true;
+		int length = 0;
+		int pointers = 0;
+		int len = u8(packet, index);
+		while (len != 0) {
+			if ((len & 0xC0) == 0xC0) {
+				index = followPointer(packet, index, ++pointers);
+			} else {
+				length = checkLabel(packet, index, len, length);
+				if (!first) {
+					name.append('.');
+				}
+				for (int i = 1; i <= len; i++) {
+					name.append((char) (packet.get(index + i) & 0xff));
+				}
+				first = false;
+				index += len + 1;
+			}
+			len = u8(packet, index);
+		}
+		return name;
+	}
+
+	/**
+	 * Write the name at the given offset to another packet without
+	 * compression, following any compression pointers in the source.
+	 *
+	 * @param packet : the packet data.
+	 * @param index  : the offset of the first label of the name.
+	 * @param out    : the buffer the name is written to, at its position.
+	 */
+	public static void copyName(ByteBuffer packet, int index, ByteBuffer out) {
+		int length = 0;
+		int pointers = 0;
+		int len = u8(packet, index);
+		while (len != 0) {
+			if ((len & 0xC0) == 0xC0) {
+				index = followPointer(packet, index, ++pointers);
+			} else {
+				length = checkLabel(packet, index, len, length);
+				for (int i = 0; i <= len; i++) {
+					out.put(packet.get(index + i));
+				}
+				index += len + 1;
+			}
+			len = u8(packet, index);
+		}
+		out.put((byte) 0);
+	}
+
+	public static String readName(ByteBuffer packet, int index) {
+		return appendName(packet, index, new StringBuilder(64)).toString();
+	}
+
+	/**
+	 * Check the label at the given offset, whose first byte is not a pointer,
+	 * and add it to the wire length of the name read so far.
+	 *
+	 * @param len    : the first byte of the label.
+	 * @param length : the wire length of the labels before it.
+	 * @return the wire length including the label.
+	 */
+	static int checkLabel(ByteBuffer packet, int index, int len, int length) {
+		if (len > 63) {
+			throw new RuntimeException("\nERROR\tThe name has a label of unknown type");
+		}
+		if (index + len >= packet.limit()) {
+			throw new IndexOutOfBoundsException("\nERROR\tThe name runs past the end of the packet");
+		}
+		length += len + 1;
+		// Leave room for the terminating zero label.
+		if (length >= MAX_NAME_LENGTH) {
+			throw new RuntimeException("\nERROR\tThe name is longer than " + MAX_NAME_LENGTH + " bytes");
+		}
+		return length;
+	}
+
+	/**
+	 * Follow the compression pointer at the given offset. Pointers always
+	 * point back, to a name that appeared before, so a pointer to itself or
+	 * further on is rejected, and so is the pointer after MAX_POINTERS.
+	 *
+	 * @param pointers : the number of pointers followed for the name so far,
+	 *                 this one included.
+	 * @return the offset the pointer points to.
+	 */
+	static int followPointer(ByteBuffer packet, int index, int pointers) {
+		int target = u16(packet, index) & 0x3FFF;
+		if (target >= index || pointers > MAX_POINTERS) {
+			throw new RuntimeException("\nERROR\tThe name has a compression loop");
+		}
+		return target;
+	}
+
+	/**
+	 * Whether a dotted name can be encoded in a question: ASCII labels of 1 to
+	 * 63 characters, at most 255 bytes in wire form. A trailing dot is allowed,
+	 * and the root name may be written "." or "".
+	 */
+	public static boolean isValidName(String name) {
+		int length = name.endsWith(".") ? name.length() - 1 : name.length();
+		if (length == 0) {
+			return true;
+		}
+		if (length > 253) {
+			return false;
+		}
+		int label = 0;
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if (c == '.') {
+				if (label == 0) {
+					return false;
+				}
+				label = 0;
+			} else if (c > 0x7f || ++label > 63) {
+				return false;
+			}
+		}
+		return label > 0;
+	}
+
+	/**
+	 * Append an IPv4 address in dotted-quad form.
+	 *
+	 * @param address : the address as a big-endian int.
+	 * @param out     : the builder the address is appended to.
+	 * @return the builder, for chaining.
+	 */
+	public static StringBuilder appendIPv4(int address, StringBuilder out) {
+		return out.append(address >>> 24).append('.').append((address >>> 16) & 0xff).append('.')
+				.append((address >>> 8) & 0xff).append('.').append(address & 0xff);
+	}
+
+	/**
+	 * Append a 16 byte IPv6 address in the canonical text form of RFC 5952:
+	 * lower-case hex groups without leading zeros, with the longest run of two
+	 * or more zero groups replaced by "::".
+	 *
+	 * @param packet : the packet data.
+	 * @param index  : the offset of the address.
+	 * @param out    : the builder the address is appended to.
+	 * @return the builder, for chaining.
+	 */
+	public static StringBuilder appendIPv6(ByteBuffer packet, int index, StringBuilder out) {
+		int bestStart = -1;
+		int bestLength = 1;
+		for (int i = 0, run = 0; i < 8; i++) {
+			run = u16(packet, index + i * 2) == 0 ? run + 1 : 0;
+			if (run > bestLength) {
+				bestLength = run;
+				bestStart = i - run + 1;
+			}
+		}
+		for (int i = 0; i < 8; i++) {
+			if (i == bestStart) {
+				out.append("::");
+				i += bestLength - 1;
+				continue;
+			}
+			if (i > 0 && i != bestStart + bestLength) {
+				out.append(':');
+			}
+			out.append(Integer.toHexString(u16(packet, index + i * 2)));
+		}
+		return out;
+	}
+}
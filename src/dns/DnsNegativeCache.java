@@ -0,0 +1,37 @@
+package dns;
+
+/**
+ * A cache of negative answers: NXDOMAIN responses, and NODATA responses that
+ * succeed without any answer records. Following RFC 2308, such a response is
+ * cached for the smaller of the TTL and the MINIMUM field of the SOA record in
+ * its authority section, capped at three hours. Negative responses without an
+ * SOA record are not cached.
+ *
+ * It has its own size limit and counters, so a flood of misses cannot push
+ * positive answers out of the main cache.
+ */
+public class DnsNegativeCache extends DnsCache {
+	public static final int DEFAULT_MAX_SIZE = 2000;
+	public static final long MAX_NEGATIVE_TTL = 10800;
+
+	public DnsNegativeCache(int maxSize) {
+		super(maxSize);
+	}
+
+	@Override
+	protected long getTTL(DnsResponse response) {
+		DnsHeader header = response.getHeader();
+		boolean nxdomain = header.getRCODE() == 3;
+		boolean nodata = header.getRCODE() == 0 && response.getAnswerCount() == 0;
+		if (!nxdomain && !nodata) {
+			return -1;
+		}
+		DnsRecordCursor cursor = response.authorities();
+		while (cursor.next()) {
+			if (cursor.getType() == DnsRecordCursor.TYPE_SOA) {
+				return Math.min(Math.min(cursor.getTTL(), cursor.getSOAMinimum()), MAX_NEGATIVE_TTL);
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,68 @@
+package dns;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent lookups of the same question share one network query. The
+ * first caller for a question starts the query; every caller that arrives
+ * while it is in flight gets the same result instead of sending its own. The
+ * entry is removed as soon as the query completes, so later callers start a
+ * fresh query (or, normally, hit the cache it has just filled).
+ *
+ * Each caller gets its own copy of the shared future, so cancelling one
+ * caller's future does not cancel the query for the others.
+ */
+public class DnsQueryCoalescer {
+	private final ConcurrentHashMap<DnsQueryKey, CompletableFuture<DnsResponse>> inflight = new ConcurrentHashMap<>();
+	private final LongAdder queries = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	/**
+	 * @param name  : the domain name to look up.
+	 * @param qtype : the wire code of the request type.
+	 * @param query : starts the network query; only called by the first caller.
+	 */
+	public CompletableFuture<DnsResponse> coalesce(String name, int qtype,
+			Supplier<CompletableFuture<DnsResponse>> query) {
+		DnsQueryKey key = new DnsQueryKey(name, qtype, DnsRecordCursor.CLASS_IN);
+		CompletableFuture<DnsResponse> shared = new CompletableFuture<>();
+		CompletableFuture<DnsResponse> existing = inflight.putIfAbsent(key, shared);
+		if (existing != null) {
+			coalesced.increment();
+			return existing.copy();
+		}
+		queries.increment();
+		try {
+			query.get().whenComplete((response, error) -> {
+				inflight.remove(key, shared);
+				if (error != null) {
+					shared.completeExceptionally(error);
+				} else {
+					shared.complete(response);
+				}
+			});
+		} catch (RuntimeException e) {
+			inflight.remove(key, shared);
+			shared.completeExceptionally(e);
+		}
+		return shared.copy();
+	}
+
+	// The number of questions currently in flight.
+	public int getInflight() {
+		return inflight.size();
+	}
+
+	// The number of lookups that started a network query.
+	public long getQueries() {
+		return queries.sum();
+	}
+
+	// The number of lookups that joined a query already in flight.
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+}
@@ -0,0 +1,44 @@
+package dns;
+
+import java.util.Locale;
+
+/**
+ * Identifies a question: a name, a type and a class. Names compare
+ * case-insensitively and without a trailing dot, so "WWW.Example.com." and
+ * "www.example.com" are the same question.
+ */
+final class DnsQueryKey {
+	final String name;
+	final int qtype;
+	final int qclass;
+	private final int hash;
+
+	DnsQueryKey(String name, int qtype, int qclass) {
+		if (name.endsWith(".")) {
+			name = name.substring(0, name.length() - 1);
+		}
+		this.name = name.toLowerCase(Locale.ROOT);
+		this.qtype = qtype;
+		this.qclass = qclass;
+		this.hash = (this.name.hashCode() * 31 + qtype) * 31 + qclass;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof DnsQueryKey)) {
+			return false;
+		}
+		DnsQueryKey other = (DnsQueryKey) o;
+		return qtype == other.qtype && qclass == other.qclass && name.equals(other.name);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return name + "/" + qtype + "/" + qclass;
+	}
+}
@@ -0,0 +1,126 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A query packet encoded once and reused: the header with a zero ID, the
+ * question and, when EDNS is used, the OPT record. Sending a query copies the
+ * template into a send buffer and writes the transaction ID over the first two
+ * bytes, so the name is not encoded again for every query.
+ *
+ * Templates are kept in a small direct-mapped table, so a name that is asked
+ * for repeatedly finds its template with one array read and a string compare;
+ * a template that collides with a newer one is simply encoded again the next
+ * time it is needed.
+ */
+public final class DnsQueryTemplate {
+	// The largest query: a header, a 255 byte name, QTYPE and QCLASS, and OPT.
+	public static final int MAX_SIZE = 12 + 255 + 4 + 11;
+	private static final int CACHED = 1024;
+	private static final AtomicReferenceArray<DnsQueryTemplate> TEMPLATES = new AtomicReferenceArray<>(CACHED);
+
+	private final String name;
+	private final int qtype;
+	private final boolean recursionDesired;
+	private final int udpPayloadSize;
+	private final byte[] packet;
+	private final byte[] question;
+
+	private DnsQueryTemplate(String name, int qtype, boolean recursionDesired, int udpPayloadSize) {
+		this.name = name;
+		this.qtype = qtype;
+		this.recursionDesired = recursionDesired;
+		this.udpPayloadSize = udpPayloadSize;
+
+		ByteBuffer out = ByteBuffer.allocate(MAX_SIZE);
+		out.putShort((short) 0).putShort((short) (recursionDesired ? 0x0100 : 0));
+		out.putShort((short) 1).putShort((short) 0).putShort((short) 0);
+		out.putShort((short) (udpPayloadSize > 0 ? 1 : 0));
+		writeName(name, out);
+		out.putShort((short) qtype).putShort((short) DnsRecordCursor.CLASS_IN);
+		this.question = new byte[out.position() - 12];
+		out.get(12, question);
+		if (udpPayloadSize > 0) {
+			out.put(DnsQuestion.getOptRecord(udpPayloadSize));
+		}
+		this.packet = new byte[out.position()];
+		out.get(0, packet);
+	}
+
+	/**
+	 * The template for a query, encoded on first use.
+	 *
+	 * @param name             : the domain name to look up.
+	 * @param qtype            : the request type code.
+	 * @param recursionDesired : whether to set the RD bit.
+	 * @param udpPayloadSize   : the EDNS payload size to advertise, or 0 to
+	 *                         leave out the OPT record.
+	 * @throws IllegalArgumentException if the name cannot be encoded.
+	 */
+	public static DnsQueryTemplate of(String name, int qtype, boolean recursionDesired, int udpPayloadSize) {
+		int slot = (name.hashCode() * 31 + qtype) & (CACHED - 1);
+		DnsQueryTemplate template = TEMPLATES.get(slot);
+		if (template != null && template.qtype == qtype && template.recursionDesired == recursionDesired
+				&& template.udpPayloadSize == udpPayloadSize && template.name.equals(name)) {
+			return template;
+		}
+		template = new DnsQueryTemplate(name, qtype, recursionDesired, udpPayloadSize);
+		TEMPLATES.set(slot, template);
+		return template;
+	}
+
+	/**
+	 * Copy the query into a buffer, with the given transaction ID.
+	 *
+	 * @return the buffer, positioned after the query.
+	 */
+	public ByteBuffer writeTo(ByteBuffer out, int id) {
+		int start = out.position();
+		return out.put(packet).putShort(start, (short) id);
+	}
+
+	public int getLength() {
+		return packet.length;
+	}
+
+	// The question section, which a response must repeat. Not a copy.
+	byte[] getQuestion() {
+		return question;
+	}
+
+	// Write a dotted name in wire form, ignoring a trailing dot.
+	private static void writeName(String name, ByteBuffer out) {
+		int length = name.endsWith(".") ? name.length() - 1 : name.length();
+		if (length > 253) {
+			throw new IllegalArgumentException("\nERROR\tThe domain name " + name + " is too long");
+		}
+		int label = out.position();
+		out.put((byte) 0);
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if (c == '.') {
+				label = closeLabel(name, out, label);
+				out.put((byte) 0);
+			} else if (c > 0x7f) {
+				throw new IllegalArgumentException("\nERROR\tThe domain name " + name + " is not ASCII");
+			} else {
+				out.put((byte) c);
+			}
+		}
+		if (length > 0) {
+			closeLabel(name, out, label);
+			out.put((byte) 0);
+		}
+	}
+
+	// Fill in the length byte of the label that ends here.
+	private static int closeLabel(String name, ByteBuffer out, int label) {
+		int length = out.position() - label - 1;
+		if (length == 0 || length > 63) {
+			throw new IllegalArgumentException("\nERROR\tThe domain name " + name + " has an invalid label");
+		}
+		out.put(label, (byte) length);
+		return out.position();
+	}
+}
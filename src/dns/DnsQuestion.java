@@ -26,17 +26,7 @@ public class DnsQuestion {
 			}
 		}
 
-		switch (qtype) {
-		case "A":
-			this.QTYPE = 0x0001;
-			break;
-		case "NS":
-			this.QTYPE = 0x0002;
-			break;
-		case "MX":
-			this.QTYPE = 0x000f;
-			break;
-		}
+		this.QTYPE = (short) getTypeCode(qtype);
 
 		dnsQuestion.put((byte) 0x00);
 		dnsQuestion.putShort(this.QTYPE);
@@ -46,6 +36,30 @@ public class DnsQuestion {
 		this.question = dnsQuestion.array();
 	}
 
+	// The wire code of a request type, by name or as TYPEnnn, or 0 if the
+	// type is not known.
+	public static int getTypeCode(String qtype) {
+		return DnsRecordType.codeOf(qtype);
+	}
+
+	/**
+	 * The EDNS(0) OPT pseudo-record of RFC 6891, which goes in the additional
+	 * section of a query: the root name, type 41, the advertised UDP payload
+	 * size in place of the class, and a zero extended RCODE, version and flags
+	 * in place of the TTL, with no options.
+	 *
+	 * @param udpPayloadSize : the largest UDP response we can receive.
+	 */
+	public static byte[] getOptRecord(int udpPayloadSize) {
+		ByteBuffer opt = ByteBuffer.allocate(11);
+		opt.put((byte) 0x00);
+		opt.putShort((short) 41);
+		opt.putShort((short) udpPayloadSize);
+		opt.putInt(0);
+		opt.putShort((short) 0);
+		return opt.array();
+	}
+
 	public byte[] getQuestion() {
 		return this.question;
 	}
@@ -60,15 +74,6 @@ public class DnsQuestion {
 	}
 
 	public String getQTYPE() {
-		switch (this.QTYPE) {
-		case 0x0001:
-			return "A";
-		case 0x0002:
-			return "NS";
-		case 0x000f:
-			return "MX";
-		default:
-			return "";
-		}
+		return DnsRecordType.nameOf(this.QTYPE & 0xffff);
 	}
 }
@@ -0,0 +1,23 @@
+package dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Formats the data of one record type. A codec reads the fields straight from
+ * the packet, and only when it is called, so records that are never printed
+ * are never decoded.
+ */
+@FunctionalInterface
+public interface DnsRdataCodec {
+
+	/**
+	 * Append the fields of a record's data in the client's output format,
+	 * separated by tabs.
+	 *
+	 * @param packet : the packet data.
+	 * @param offset : the offset of the record data.
+	 * @param length : the length of the record data.
+	 * @param out    : the builder the fields are appended to.
+	 */
+	void format(ByteBuffer packet, int offset, int length, StringBuilder out);
+}
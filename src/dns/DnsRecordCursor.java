@@ -0,0 +1,229 @@
+package dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight view over the resource records of one section of a DNS packet.
+ * The cursor never copies the packet: {@link #next()} only moves a handful of
+ * int fields to the next record, so a walk over any number of records
+ * allocates nothing. Names and addresses are only turned into Strings when one
+ * of the formatting methods is called; names are decoded through a
+ * DnsNameDecoder that is kept for as long as the cursor stays on the same
+ * packet, so the suffixes its records share are decoded once per packet, even
+ * across sections. The packet must not change while a cursor is on it.
+ *
+ * A cursor is not thread-safe, but any number of cursors can walk the same
+ * packet at the same time.
+ */
+public class DnsRecordCursor {
+	public static final int TYPE_A = 1;
+	public static final int TYPE_NS = 2;
+	public static final int TYPE_CNAME = 5;
+	public static final int TYPE_SOA = 6;
+	public static final int TYPE_PTR = 12;
+	public static final int TYPE_MX = 15;
+	public static final int TYPE_TXT = 16;
+	public static final int TYPE_AAAA = 28;
+	public static final int TYPE_SRV = 33;
+	public static final int TYPE_OPT = 41;
+	public static final int CLASS_IN = 1;
+
+	private ByteBuffer packet;
+	private int nextIndex;
+	private int remaining;
+
+	private int nameOffset;
+	private int type;
+	private int clazz;
+	private int ttl;
+	private int rdataOffset;
+	private int rdataLength;
+	private DnsNameDecoder names;
+
+	/**
+	 * Point the cursor at the first of {@code count} records starting at the
+	 * given offset. The cursor is positioned before the first record, so
+	 * {@link #next()} must be called before reading any field.
+	 *
+	 * @param packet : the packet data.
+	 * @param index  : the offset of the first record of the section.
+	 * @param count  : the number of records in the section.
+	 * @return this cursor.
+	 */
+	public DnsRecordCursor reset(ByteBuffer packet, int index, int count) {
+		if (names != null && packet != this.packet) {
+			names.reset(packet);
+		}
+		this.packet = packet;
+		this.nextIndex = index;
+		this.remaining = count;
+		return this;
+	}
+
+	/**
+	 * Move to the next record of the section.
+	 *
+	 * @return false when every record of the section has been visited.
+	 */
+	public boolean next() {
+		if (remaining <= 0) {
+			return false;
+		}
+		remaining--;
+		nameOffset = nextIndex;
+		int index = DnsNames.skipName(packet, nextIndex);
+		type = DnsNames.u16(packet, index);
+		clazz = DnsNames.u16(packet, index + 2);
+		ttl = DnsNames.u32(packet, index + 4);
+		rdataLength = DnsNames.u16(packet, index + 8);
+		rdataOffset = index + 10;
+		if (rdataOffset + rdataLength > packet.limit()) {
+			throw new RuntimeException("\nERROR\tThe record data runs past the end of the response");
+		}
+		nextIndex = rdataOffset + rdataLength;
+		return true;
+	}
+
+	/**
+	 * Skip {@code count} records starting at the given offset.
+	 *
+	 * @return the offset of the first byte after the last skipped record.
+	 */
+	public static int skipRecords(ByteBuffer packet, int index, int count) {
+		for (int i = 0; i < count; i++) {
+			index = DnsNames.skipName(packet, index);
+			index += 10 + DnsNames.u16(packet, index + 8);
+		}
+		return index;
+	}
+
+	public ByteBuffer getPacket() {
+		return this.packet;
+	}
+
+	public int getNameOffset() {
+		return this.nameOffset;
+	}
+
+	public int getType() {
+		return this.type;
+	}
+
+	public int getClazz() {
+		return this.clazz;
+	}
+
+	/**
+	 * The TTL is an unsigned 32 bit value, but RFC 2181 says a TTL with the most
+	 * significant bit set must be treated as zero.
+	 */
+	public int getTTL() {
+		return this.ttl < 0 ? 0 : this.ttl;
+	}
+
+	public int getRDataOffset() {
+		return this.rdataOffset;
+	}
+
+	public int getRDataLength() {
+		return this.rdataLength;
+	}
+
+	// The IPv4 address of an A record as a big-endian int.
+	public int getIPv4() {
+		return DnsNames.u32(packet, rdataOffset);
+	}
+
+	/**
+	 * The record data as a read-only view of the packet. Nothing is copied,
+	 * so this is how records of types the client does not know are carried.
+	 */
+	public ByteBuffer getRData() {
+		return packet.slice(rdataOffset, rdataLength).asReadOnlyBuffer();
+	}
+
+	public int getPreference() {
+		return DnsNames.u16(packet, rdataOffset);
+	}
+
+	public int getSRVPriority() {
+		return DnsNames.u16(packet, rdataOffset);
+	}
+
+	public int getSRVWeight() {
+		return DnsNames.u16(packet, rdataOffset + 2);
+	}
+
+	public int getSRVPort() {
+		return DnsNames.u16(packet, rdataOffset + 4);
+	}
+
+	// The MINIMUM field of an SOA record, which follows the two names and four
+	// other 32 bit fields of its data.
+	public long getSOAMinimum() {
+		int index = DnsNames.skipName(packet, rdataOffset);
+		index = DnsNames.skipName(packet, index);
+		return DnsNames.u32(packet, index + 16) & 0xffffffffL;
+	}
+
+	// The offset of the domain name carried by NS, CNAME, PTR, MX and SRV
+	// records.
+	public int getRDataNameOffset() {
+		switch (this.type) {
+		case TYPE_MX:
+			return rdataOffset + 2;
+		case TYPE_SRV:
+			return rdataOffset + 6;
+		default:
+			return rdataOffset;
+		}
+	}
+
+	public String getName() {
+		return names().readName(nameOffset);
+	}
+
+	public String getRDataName() {
+		return names().readName(getRDataNameOffset());
+	}
+
+	// Created on the first name read, then kept across resets.
+	private DnsNameDecoder names() {
+		if (names == null) {
+			names = new DnsNameDecoder().reset(packet);
+		}
+		return names;
+	}
+
+	// The mnemonic of the record's type, or TYPEnnn if it is not registered.
+	public String getTypeName() {
+		return DnsRecordType.nameOf(this.type);
+	}
+
+	/**
+	 * Append the record in the client's output format, for example
+	 * {@code IP <tab> 1.2.3.4 <tab> 300 <tab> auth}. The data is formatted by
+	 * the codec of its type in DnsRecordType; data of a type that is not
+	 * registered, or that does not apply to the record's class, is printed
+	 * in the generic form of RFC 3597 after a TYPEnnn label.
+	 *
+	 * @param auth : whether the response was authoritative.
+	 * @param out  : the builder the record is appended to.
+	 * @return false if the record is an OPT pseudo-record, which is not
+	 *         printed.
+	 */
+	public boolean appendOutput(boolean auth, StringBuilder out) {
+		if (this.type == TYPE_OPT) {
+			return false;
+		}
+		DnsRecordType known = DnsRecordType.of(this.type);
+		if (known != null && known.appliesTo(this.clazz)) {
+			known.format(packet, rdataOffset, rdataLength, out.append(known.getLabel()).append('\t'));
+		} else {
+			DnsRecordType.formatGeneric(packet, rdataOffset, rdataLength,
+					out.append("TYPE").append(this.type).append('\t'));
+		}
+		out.append('\t').append(getTTL()).append('\t').append(auth ? "auth" : "nonauth");
+		return true;
+	}
+}
@@ -0,0 +1,216 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The registry of record types the client knows: their codes, their names,
+ * and the codecs that format their data. Types that are not registered are
+ * still carried and printed, in the generic form of RFC 3597 ({@code TYPE99}
+ * and {@code \# <length> <hex>}), and can be asked for by that name.
+ *
+ * A, AAAA and SRV data only has its usual meaning in the IN class, so
+ * records of those types in any other class are printed in the generic form
+ * too.
+ *
+ * Types may be registered while other threads are reading packets, so every
+ * table here publishes its entries safely.
+ */
+public final class DnsRecordType {
+	private static final AtomicReferenceArray<DnsRecordType> LOW_CODES = new AtomicReferenceArray<>(256);
+	private static final Map<Integer, DnsRecordType> HIGH_CODES = new ConcurrentHashMap<>();
+	private static final Map<String, DnsRecordType> NAMES = new ConcurrentHashMap<>();
+
+	private static final DnsRdataCodec NAME = (packet, offset, length, out) -> DnsNames.appendName(packet, offset,
+			out);
+
+	public static final DnsRecordType A = register(new DnsRecordType(DnsRecordCursor.TYPE_A, "A", "IP", true,
+			(packet, offset, length, out) -> {
+				if (length != 4) {
+					formatGeneric(packet, offset, length, out);
+				} else {
+					DnsNames.appendIPv4(DnsNames.u32(packet, offset), out);
+				}
+			}));
+	public static final DnsRecordType NS = register(new DnsRecordType(DnsRecordCursor.TYPE_NS, "NS", false, NAME));
+	public static final DnsRecordType CNAME = register(
+			new DnsRecordType(DnsRecordCursor.TYPE_CNAME, "CNAME", false, NAME));
+	public static final DnsRecordType SOA = register(
+			new DnsRecordType(DnsRecordCursor.TYPE_SOA, "SOA", false, DnsRecordType::formatSOA));
+	public static final DnsRecordType PTR = register(new DnsRecordType(DnsRecordCursor.TYPE_PTR, "PTR", false, NAME));
+	public static final DnsRecordType MX = register(new DnsRecordType(DnsRecordCursor.TYPE_MX, "MX", false,
+			(packet, offset, length, out) -> DnsNames.appendName(packet, offset + 2, out).append('\t')
+					.append(DnsNames.u16(packet, offset))));
+	public static final DnsRecordType TXT = register(
+			new DnsRecordType(DnsRecordCursor.TYPE_TXT, "TXT", false, DnsRecordType::formatTXT));
+	public static final DnsRecordType AAAA = register(new DnsRecordType(DnsRecordCursor.TYPE_AAAA, "AAAA", true,
+			(packet, offset, length, out) -> {
+				if (length != 16) {
+					formatGeneric(packet, offset, length, out);
+				} else {
+					DnsNames.appendIPv6(packet, offset, out);
+				}
+			}));
+	public static final DnsRecordType SRV = register(
+			new DnsRecordType(DnsRecordCursor.TYPE_SRV, "SRV", true, DnsRecordType::formatSRV));
+
+	private final int code;
+	private final String name;
+	private final String label;
+	private final boolean inOnly;
+	private final DnsRdataCodec codec;
+
+	/**
+	 * @param code   : the type code, 1 to 65535.
+	 * @param name   : the mnemonic, for example "CAA".
+	 * @param inOnly : whether the codec only applies to records of the IN
+	 *               class.
+	 * @param codec  : formats the record data.
+	 */
+	public DnsRecordType(int code, String name, boolean inOnly, DnsRdataCodec codec) {
+		this(code, name, name, inOnly, codec);
+	}
+
+	private DnsRecordType(int code, String name, String label, boolean inOnly, DnsRdataCodec codec) {
+		if (code <= 0 || code > 0xFFFF) {
+			throw new IllegalArgumentException("\nERROR\tInvalid type code " + code);
+		}
+		this.code = code;
+		this.name = name.toUpperCase(Locale.ROOT);
+		this.label = label;
+		this.inOnly = inOnly;
+		this.codec = codec;
+	}
+
+	/**
+	 * Add a type to the registry, replacing any type with the same code or
+	 * name.
+	 *
+	 * @return the type, for chaining.
+	 */
+	public static DnsRecordType register(DnsRecordType type) {
+		if (type.code < LOW_CODES.length()) {
+			LOW_CODES.set(type.code, type);
+		} else {
+			HIGH_CODES.put(type.code, type);
+		}
+		NAMES.put(type.name, type);
+		return type;
+	}
+
+	// The registered type with the given code, or null.
+	public static DnsRecordType of(int code) {
+		if (code >= 0 && code < LOW_CODES.length()) {
+			return LOW_CODES.get(code);
+		}
+		return HIGH_CODES.get(code);
+	}
+
+	/**
+	 * The code of a type given by its mnemonic, or in the generic TYPEnnn form.
+	 *
+	 * @return the code, or 0 if the name is not a known type.
+	 */
+	public static int codeOf(String name) {
+		DnsRecordType type = NAMES.get(name.toUpperCase(Locale.ROOT));
+		if (type != null) {
+			return type.code;
+		}
+		if (name.length() > 4 && name.regionMatches(true, 0, "TYPE", 0, 4)) {
+			try {
+				int code = Integer.parseInt(name.substring(4));
+				return code > 0 && code <= 0xFFFF && code != DnsRecordCursor.TYPE_OPT ? code : 0;
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	// The mnemonic of a type, or TYPEnnn if it is not registered.
+	public static String nameOf(int code) {
+		DnsRecordType type = of(code);
+		return type != null ? type.name : "TYPE" + code;
+	}
+
+	public int getCode() {
+		return this.code;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	// What starts a record of this type in the client's output.
+	public String getLabel() {
+		return this.label;
+	}
+
+	// Whether the codec applies to records of the given class.
+	public boolean appliesTo(int clazz) {
+		return !inOnly || clazz == DnsRecordCursor.CLASS_IN;
+	}
+
+	// Append the fields of a record's data, tab-separated.
+	public StringBuilder format(ByteBuffer packet, int offset, int length, StringBuilder out) {
+		codec.format(packet, offset, length, out);
+		return out;
+	}
+
+	// \# <length> <hex>, as RFC 3597 writes data of unknown types.
+	public static StringBuilder formatGeneric(ByteBuffer packet, int offset, int length, StringBuilder out) {
+		out.append("\\# ").append(length);
+		if (length > 0) {
+			out.append(' ');
+		}
+		for (int i = 0; i < length; i++) {
+			int b = packet.get(offset + i) & 0xff;
+			out.append(Character.forDigit(b >>> 4, 16)).append(Character.forDigit(b & 0x0F, 16));
+		}
+		return out;
+	}
+
+	// mname, rname, serial, refresh, retry, expire and minimum.
+	private static void formatSOA(ByteBuffer packet, int offset, int length, StringBuilder out) {
+		DnsNames.appendName(packet, offset, out).append('\t');
+		int rname = DnsNames.skipName(packet, offset);
+		DnsNames.appendName(packet, rname, out);
+		int fields = DnsNames.skipName(packet, rname);
+		for (int i = 0; i < 5; i++) {
+			out.append('\t').append(DnsNames.u32(packet, fields + i * 4) & 0xffffffffL);
+		}
+	}
+
+	// Each character-string in quotes, separated by spaces.
+	private static void formatTXT(ByteBuffer packet, int offset, int length, StringBuilder out) {
+		int end = offset + length;
+		for (boolean first = true; offset < end; first = false) {
+			int len = DnsNames.u8(packet, offset);
+			if (offset + 1 + len > end) {
+				throw new RuntimeException("\nERROR\tThe TXT string runs past the end of the record");
+			}
+			out.append(first ? "\"" : " \"");
+			for (int i = 1; i <= len; i++) {
+				char c = (char) (packet.get(offset + i) & 0xff);
+				if (c == '"' || c == '\\') {
+					out.append('\\').append(c);
+				} else if (c < 0x20 || c > 0x7E) {
+					out.append('\\').append((int) c / 100).append((int) c / 10 % 10).append((int) c % 10);
+				} else {
+					out.append(c);
+				}
+			}
+			out.append('"');
+			offset += len + 1;
+		}
+	}
+
+	// target, port, priority and weight.
+	private static void formatSRV(ByteBuffer packet, int offset, int length, StringBuilder out) {
+		DnsNames.appendName(packet, offset + 6, out).append('\t').append(DnsNames.u16(packet, offset + 4));
+		out.append('\t').append(DnsNames.u16(packet, offset)).append('\t').append(DnsNames.u16(packet, offset + 2));
+	}
+}
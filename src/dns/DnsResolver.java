@@ -0,0 +1,435 @@
+package dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The library entry point: resolves names against a pool of DNS servers and
+ * returns the responses asynchronously. A resolver is thread-safe and is meant
+ * to be shared; all of its queries are multiplexed over one UDP socket, and
+ * truncated answers are fetched again over pooled TCP connections. Set the
+ * timeout, retries and hedge delay before the first call to resolve.
+ *
+ * Hot names are refreshed in the background shortly before they expire (see
+ * DnsCache.setPrefetchFraction), so lookups of them are answered from the
+ * cache without waiting on the network. When the caches keep stale entries
+ * (DnsCache.setMaxStale), an expired answer is refreshed first and served
+ * stale if the refresh fails or takes longer than the stale answer timeout,
+ * as RFC 8767 describes.
+ *
+ * A resolver made by {@link #iterative(List)} has no recursive servers: it
+ * resolves every name itself from the root hints (see DnsIterativeResolver).
+ *
+ * Besides the future of raw responses returned by {@link #resolve(String,
+ * String)}, it implements the typed Resolver API, with results as values and
+ * a deadline budget per lookup.
+ */
+public class DnsResolver implements Resolver {
+	public static final int DEFAULT_TIMEOUT = 5000;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	// The client response timer suggested by RFC 8767.
+	public static final int DEFAULT_STALE_ANSWER_TIMEOUT = 1800;
+	// How long close() waits for a periodic snapshot save, in seconds.
+	private static final int SNAPSHOT_SAVE_WAIT = 30;
+
+	private final DnsUdpTransport transport;
+	private final DnsTcpTransport tcpTransport;
+	private final DnsServerPool servers;
+	private final DnsIterativeResolver iterativeResolver;
+	private final DnsUpstream upstream;
+	private final DnsCache cache;
+	private final DnsNegativeCache negativeCache;
+	private final DnsQueryCoalescer coalescer = new DnsQueryCoalescer();
+	private final LongAdder prefetches = new LongAdder();
+	private final LongAdder staleAnswers = new LongAdder();
+	private final LongAdder localAnswers = new LongAdder();
+	private volatile DnsLocalZone localZone;
+	private int timeout;
+	private int maxRetries;
+	private int staleAnswerTimeout = DEFAULT_STALE_ANSWER_TIMEOUT;
+	private volatile DnsMetrics metrics = DnsMetrics.disabled();
+	private Path snapshotFile;
+	private ScheduledExecutorService snapshotTimer;
+
+	public DnsResolver(InetSocketAddress server) throws IOException {
+		this(server, new DnsCache(DnsCache.DEFAULT_MAX_SIZE),
+				new DnsNegativeCache(DnsNegativeCache.DEFAULT_MAX_SIZE));
+	}
+
+	public DnsResolver(List<InetSocketAddress> servers) throws IOException {
+		this(servers, new DnsCache(DnsCache.DEFAULT_MAX_SIZE),
+				new DnsNegativeCache(DnsNegativeCache.DEFAULT_MAX_SIZE));
+	}
+
+	public DnsResolver(InetSocketAddress server, DnsCache cache, DnsNegativeCache negativeCache)
+			throws IOException {
+		this(Collections.singletonList(server), cache, negativeCache);
+	}
+
+	/**
+	 * @param servers       : the upstream servers, raced as described in
+	 *                      DnsServerPool.
+	 * @param cache         : the cache of answers.
+	 * @param negativeCache : the cache of NXDOMAIN and NODATA responses.
+	 */
+	public DnsResolver(List<InetSocketAddress> servers, DnsCache cache, DnsNegativeCache negativeCache)
+			throws IOException {
+		this(servers, cache, negativeCache, false);
+	}
+
+	private DnsResolver(List<InetSocketAddress> servers, DnsCache cache, DnsNegativeCache negativeCache,
+			boolean iterative) throws IOException {
+		this.transport = new DnsUdpTransport();
+		this.tcpTransport = new DnsTcpTransport();
+		if (iterative) {
+			this.servers = null;
+			this.iterativeResolver = new DnsIterativeResolver(servers, transport, tcpTransport,
+					new DnsDelegationCache(DnsDelegationCache.DEFAULT_MAX_SIZE));
+			this.upstream = iterativeResolver;
+		} else {
+			this.servers = new DnsServerPool(servers, transport, tcpTransport);
+			this.iterativeResolver = null;
+			this.upstream = this.servers;
+		}
+		this.cache = cache;
+		this.negativeCache = negativeCache;
+		this.timeout = DEFAULT_TIMEOUT;
+		this.maxRetries = DEFAULT_MAX_RETRIES;
+	}
+
+	/**
+	 * A resolver that resolves names iteratively, starting at the given root
+	 * hints, instead of asking recursive servers.
+	 *
+	 * @param rootHints : the root servers, for example
+	 *                  DnsIterativeResolver.getDefaultRootHints(53).
+	 */
+	public static DnsResolver iterative(List<InetSocketAddress> rootHints) throws IOException {
+		return iterative(rootHints, new DnsCache(DnsCache.DEFAULT_MAX_SIZE),
+				new DnsNegativeCache(DnsNegativeCache.DEFAULT_MAX_SIZE));
+	}
+
+	public static DnsResolver iterative(List<InetSocketAddress> rootHints, DnsCache cache,
+			DnsNegativeCache negativeCache) throws IOException {
+		return new DnsResolver(rootHints, cache, negativeCache, true);
+	}
+
+	/**
+	 * Look up a name. A local override (see setLocalZone), a cached response,
+	 * or a cached NXDOMAIN or NODATA response, is returned right away;
+	 * otherwise the query is raced across the server pool, or resolved
+	 * iteratively, and its response is cached in whichever cache accepts it.
+	 * Concurrent lookups of the same question share one query. The future
+	 * completes exceptionally with a SocketTimeoutException once every retry
+	 * has timed out.
+	 *
+	 * A cached response that is due for a refresh is still returned right away,
+	 * and the refresh runs in the background. A stale response is returned if
+	 * its refresh fails or does not finish within the stale answer timeout.
+	 *
+	 * A name that cannot be encoded, or an unknown type, fails the future with
+	 * an INVALID_REQUEST DnsException.
+	 *
+	 * @param name  : the domain name to look up.
+	 * @param qtype : the request type, for example A, AAAA or TYPE65.
+	 */
+	public CompletableFuture<DnsResponse> resolve(String name, String qtype) {
+		int type = DnsQuestion.getTypeCode(qtype);
+		if (type == 0 || !DnsNames.isValidName(name)) {
+			return CompletableFuture.failedFuture(invalidRequest(name, qtype));
+		}
+		return resolve(name, qtype, type, timeout);
+	}
+
+	/**
+	 * Look up a name within a deadline budget. The timeout of each attempt is
+	 * capped at the budget, and the result is a TIMEOUT failure once the
+	 * budget is spent. A query that is still running then is left to finish,
+	 * so that its answer can still fill the cache for later lookups.
+	 */
+	@Override
+	public CompletableFuture<DnsResult> resolveAsync(String name, String qtype, Duration budget) {
+		int type = DnsQuestion.getTypeCode(qtype);
+		if (type == 0 || !DnsNames.isValidName(name)) {
+			return CompletableFuture.completedFuture(DnsResult.failure(invalidRequest(name, qtype)));
+		}
+		long millis = budget.toMillis();
+		if (millis <= 0) {
+			return CompletableFuture.completedFuture(DnsResult.failure(
+					new DnsException(DnsException.Reason.TIMEOUT, "\nERROR\tThe deadline budget is spent")));
+		}
+		return resolve(name, qtype, type, (int) Math.min(timeout, millis))
+				.orTimeout(millis, TimeUnit.MILLISECONDS)
+				.handle((response, error) -> error == null ? DnsResult.of(response)
+						: DnsResult.failure(DnsException.from(error)));
+	}
+
+	private static DnsException invalidRequest(String name, String qtype) {
+		return new DnsException(DnsException.Reason.INVALID_REQUEST, "\nERROR\tCannot ask for " + qtype + " " + name);
+	}
+
+	private CompletableFuture<DnsResponse> resolve(String name, String qtype, int type, int timeout) {
+		DnsMetrics.Stats stats = metrics.type(type);
+		if (stats == null) {
+			return lookup(name, qtype, type, timeout);
+		}
+		stats.recordQuery();
+		long start = System.nanoTime();
+		CompletableFuture<DnsResponse> result = lookup(name, qtype, type, timeout);
+		result.whenComplete((response, error) -> {
+			if (response != null) {
+				stats.recordResponse(response.getHeader().getRCODE(), System.nanoTime() - start);
+			} else if (DnsException.from(error).getReason() == DnsException.Reason.TIMEOUT) {
+				stats.recordTimeout();
+			} else {
+				stats.recordFailure();
+			}
+		});
+		return result;
+	}
+
+	private CompletableFuture<DnsResponse> lookup(String name, String qtype, int type, int timeout) {
+		DnsLocalZone zone = localZone;
+		if (zone != null) {
+			DnsResponse local = zone.lookup(name, type);
+			if (local != null) {
+				localAnswers.increment();
+				return CompletableFuture.completedFuture(local);
+			}
+		}
+		long now = System.nanoTime();
+		DnsCache.Entry entry = cache.lookup(name, type, now);
+		if (entry == null) {
+			entry = negativeCache.lookup(name, type, now);
+		}
+		if (entry == null) {
+			return query(name, qtype, type, timeout);
+		}
+		DnsResponse cached = entry.response;
+		if (!entry.isExpired(now)) {
+			if (entry.claimRefresh(now)) {
+				prefetches.increment();
+				query(name, qtype, type, timeout);
+			}
+			return CompletableFuture.completedFuture(cached);
+		}
+		// A stale entry. While another caller's refresh is under way, or one has
+		// failed recently, answer stale at once.
+		if (!entry.claimRefresh(now)) {
+			staleAnswers.increment();
+			return CompletableFuture.completedFuture(cached);
+		}
+		if (staleAnswerTimeout == 0) {
+			query(name, qtype, type, timeout);
+			staleAnswers.increment();
+			return CompletableFuture.completedFuture(cached);
+		}
+		return query(name, qtype, type, timeout).completeOnTimeout(null, staleAnswerTimeout, TimeUnit.MILLISECONDS)
+				.handle((response, error) -> {
+					if (response != null) {
+						return response;
+					}
+					staleAnswers.increment();
+					return cached;
+				});
+	}
+
+	// Query the servers, sharing the query with concurrent callers, and cache
+	// the response.
+	private CompletableFuture<DnsResponse> query(String name, String qtype, int type, int timeout) {
+		return coalescer.coalesce(name, type,
+				() -> upstream.query(name, qtype, timeout, maxRetries).thenApply(response -> {
+					cache.put(name, type, response);
+					negativeCache.put(name, type, response);
+					return response;
+				}));
+	}
+
+	public DnsCache getCache() {
+		return this.cache;
+	}
+
+	public DnsNegativeCache getNegativeCache() {
+		return this.negativeCache;
+	}
+
+	public DnsQueryCoalescer getCoalescer() {
+		return this.coalescer;
+	}
+
+	// The recursive servers, or null if the resolver is iterative.
+	public DnsServerPool getServerPool() {
+		return this.servers;
+	}
+
+	// The iterative resolution engine, or null if the resolver uses recursive
+	// servers.
+	public DnsIterativeResolver getIterativeResolver() {
+		return this.iterativeResolver;
+	}
+
+	/**
+	 * Start counting queries and latency per request type and per server, and
+	 * publish the cache, coalescer and serve-stale counters as gauges. Pass
+	 * DnsMetrics.disabled() to stop.
+	 */
+	public void setMetrics(DnsMetrics metrics) {
+		this.metrics = metrics;
+		transport.setMetrics(metrics);
+		tcpTransport.setMetrics(metrics);
+		addCacheGauges(metrics, "cache", cache);
+		addCacheGauges(metrics, "negative_cache", negativeCache);
+		if (iterativeResolver != null) {
+			addCacheGauges(metrics, "delegation_cache", iterativeResolver.getDelegationCache());
+		}
+		metrics.gauge("inflight", coalescer::getInflight);
+		metrics.gauge("coalesced", coalescer::getCoalesced);
+		metrics.gauge("prefetches", this::getPrefetches);
+		metrics.gauge("stale_answers", this::getStaleAnswers);
+		metrics.gauge("local_answers", this::getLocalAnswers);
+		metrics.gauge("stray_responses", transport::getStrayResponses);
+	}
+
+	public DnsMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	private static void addCacheGauges(DnsMetrics metrics, String prefix, DnsCache cache) {
+		metrics.gauge(prefix + ".size", cache::size);
+		metrics.gauge(prefix + ".names", cache::getNameCount);
+		metrics.gauge(prefix + ".hits", cache::getHits);
+		metrics.gauge(prefix + ".stale_hits", cache::getStaleHits);
+		metrics.gauge(prefix + ".misses", cache::getMisses);
+		metrics.gauge(prefix + ".expirations", cache::getExpirations);
+		metrics.gauge(prefix + ".evictions", cache::getEvictions);
+	}
+
+	// Refreshes started ahead of expiry.
+	public long getPrefetches() {
+		return prefetches.sum();
+	}
+
+	/**
+	 * Answer the questions a local zone overrides from it, before looking at
+	 * the cache, and never send them to the servers. Pass null to stop. The
+	 * zone stays open when the resolver is closed.
+	 */
+	public void setLocalZone(DnsLocalZone localZone) {
+		this.localZone = localZone;
+	}
+
+	public DnsLocalZone getLocalZone() {
+		return this.localZone;
+	}
+
+	// Lookups answered from the local zone.
+	public long getLocalAnswers() {
+		return localAnswers.sum();
+	}
+
+	// Lookups answered with an expired response.
+	public long getStaleAnswers() {
+		return staleAnswers.sum();
+	}
+
+	// The timeout caps the adaptive retransmission timeout of every attempt.
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	// How long to wait for the refresh of a stale answer before serving it
+	// stale, in ms; 0 serves it stale at once.
+	public void setStaleAnswerTimeout(int staleAnswerTimeout) {
+		this.staleAnswerTimeout = staleAnswerTimeout;
+	}
+
+	// How long to wait for a server before racing the next one, in ms.
+	public void setHedgeDelay(int hedgeDelay) {
+		if (servers != null) {
+			servers.setHedgeDelay(hedgeDelay);
+		}
+	}
+
+	// The EDNS payload size to advertise over UDP; 0 disables EDNS.
+	public void setUdpPayloadSize(int udpPayloadSize) {
+		transport.setUdpPayloadSize(udpPayloadSize);
+	}
+
+	// Spread UDP queries at random across this many source ports.
+	public void setSourcePorts(int sourcePorts) {
+		transport.setSourcePorts(sourcePorts);
+	}
+
+	// Route UDP queries by name across this many transport shards.
+	public void setShards(int shards) {
+		transport.setShards(shards);
+	}
+
+	/**
+	 * Restore the answer cache from a snapshot file, if there is one, and save
+	 * it back to the file every period and when the resolver is closed (see
+	 * DnsCacheSnapshot). A restarted resolver then answers its working set
+	 * from the cache instead of re-resolving it.
+	 *
+	 * @param file   : the snapshot file.
+	 * @param period : the time between two saves, in seconds. 0 only saves
+	 *               on close.
+	 * @return the number of entries restored.
+	 * @throws IOException if the snapshot cannot be read. Saving is enabled
+	 *                     all the same, so a corrupt snapshot is replaced by
+	 *                     the next save.
+	 */
+	public int enableSnapshots(Path file, int period) throws IOException {
+		this.snapshotFile = file;
+		if (period > 0) {
+			snapshotTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "dns-cache-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			});
+			snapshotTimer.scheduleAtFixedRate(() -> {
+				try {
+					DnsCacheSnapshot.save(cache, file);
+				} catch (IOException e) {
+					// Keep the previous snapshot and try again next period.
+				}
+			}, period, period, TimeUnit.SECONDS);
+		}
+		return DnsCacheSnapshot.load(cache, file);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (snapshotTimer != null) {
+			// Cancel the periodic saves, but let one that is already running
+			// finish before the last one starts.
+			snapshotTimer.shutdown();
+			try {
+				snapshotTimer.awaitTermination(SNAPSHOT_SAVE_WAIT, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			if (snapshotFile != null) {
+				DnsCacheSnapshot.save(cache, snapshotFile);
+			}
+		} finally {
+			transport.close();
+			tcpTransport.close();
+		}
+	}
+}
@@ -1,75 +1,189 @@
 package dns;
 
+import java.nio.ByteBuffer;
+
 public class DnsResponse {
-	private byte[] dnsResponse;
+	private ByteBuffer dnsResponse;
 	private DnsHeader header;
-	private DnsAnswer[] answers;
-	private DnsAnswer[] authorities;
-	private DnsAnswer[] additionals;
 	private int startIndex;
+	private int authorityIndex;
+	private int additionalIndex;
+	private int endIndex;
+	private int ancount;
+	private int nscount;
+	private int arcount;
+	private int retries;
 
 	/**
-	 * This class is used to parse the answer, authority, and the additional
-	 * sections. It creates each individual answer based on the response data.
-	 * 
+	 * This class is used to walk the answer, authority, and the additional
+	 * sections. Nothing is copied out of the response data: the constructor only
+	 * records where each section starts, and the records are read through a
+	 * {@link DnsRecordCursor} when they are needed.
+	 *
 	 * @param dnsResponse
 	 * @param receivedHeader
 	 * @param startIndex
 	 */
 	public DnsResponse(byte[] dnsResponse, DnsHeader receivedHeader, int startIndex) {
+		this(ByteBuffer.wrap(dnsResponse), receivedHeader, startIndex);
+	}
+
+	public DnsResponse(ByteBuffer dnsResponse, DnsHeader receivedHeader, int startIndex) {
 		this.dnsResponse = dnsResponse;
 		this.header = receivedHeader;
 		this.startIndex = startIndex;
 		parseResponse();
 	}
 
-	public void parseResponse() {
-		int ancount = header.getANCOUNT();
-		int nscount = header.getNSCOUNT();
-		int arcount = header.getARCOUNT();
-		int index = startIndex;
-		answers = new DnsAnswer[ancount];
-		authorities = new DnsAnswer[nscount];
-		additionals = new DnsAnswer[arcount];
+	/**
+	 * Parse the header from the response data itself and skip the question
+	 * section to find the start of the answers. The buffer's limit must be the
+	 * end of the received packet.
+	 *
+	 * @param dnsResponse : the received packet.
+	 */
+	public DnsResponse(ByteBuffer dnsResponse) {
+		this.dnsResponse = dnsResponse;
+		this.header = new DnsHeader();
+		this.header.parseHeader(dnsResponse);
+		int index = 12;
+		for (int i = 0; i < header.getQDCOUNT(); i++) {
+			index = DnsNames.skipName(dnsResponse, index) + 4;
+		}
+		this.startIndex = index;
+		parseResponse();
+	}
 
-		for (int i = 0; i < answers.length; i++) {
-			answers[i] = new DnsAnswer(header.getAA());
-			index = answers[i].parseAnswer(index, dnsResponse);
+	// Find where the authority and additional sections start. Packets whose
+	// counts promise more records than were received are rejected here so the
+	// cursors never read past the end of the data, unless the TC bit says the
+	// server truncated them; then only the complete records are kept.
+	public void parseResponse() {
+		ancount = header.getANCOUNT();
+		nscount = header.getNSCOUNT();
+		arcount = header.getARCOUNT();
+		if (header.getTC() == 1) {
+			int complete = countCompleteRecords(ancount + nscount + arcount);
+			ancount = Math.min(ancount, complete);
+			nscount = Math.min(nscount, complete - ancount);
+			arcount = Math.min(arcount, complete - ancount - nscount);
 		}
+		try {
+			authorityIndex = DnsRecordCursor.skipRecords(dnsResponse, startIndex, ancount);
+			additionalIndex = DnsRecordCursor.skipRecords(dnsResponse, authorityIndex, nscount);
+			endIndex = DnsRecordCursor.skipRecords(dnsResponse, additionalIndex, arcount);
+		} catch (IndexOutOfBoundsException e) {
+			endIndex = Integer.MAX_VALUE;
+		}
+		if (endIndex > dnsResponse.limit()) {
+			throw new RuntimeException("\nERROR\tThe response is shorter than its record counts");
+		}
+	}
 
-		for (int i = 0; i < authorities.length; i++) {
-			authorities[i] = new DnsAnswer(header.getAA());
-			index = authorities[i].parseAnswer(index, dnsResponse);
+	private int countCompleteRecords(int count) {
+		int index = startIndex;
+		for (int i = 0; i < count; i++) {
+			try {
+				index = DnsRecordCursor.skipRecords(dnsResponse, index, 1);
+			} catch (IndexOutOfBoundsException e) {
+				return i;
+			}
+			if (index > dnsResponse.limit()) {
+				return i;
+			}
 		}
+		return count;
+	}
+
+	// Whether the server truncated the response, so it must be asked over TCP.
+	public boolean isTruncated() {
+		return header.getTC() == 1;
+	}
+
+	// The number of answer records, which is less than ANCOUNT only when the
+	// response is truncated.
+	public int getAnswerCount() {
+		return this.ancount;
+	}
 
-		for (int i = 0; i < additionals.length; i++) {
-			additionals[i] = new DnsAnswer(header.getAA());
-			index = additionals[i].parseAnswer(index, dnsResponse);
+	public DnsHeader getHeader() {
+		return this.header;
+	}
+
+	public ByteBuffer getData() {
+		return this.dnsResponse;
+	}
+
+	// The number of retransmissions it took to get this response.
+	public int getRetries() {
+		return this.retries;
+	}
+
+	void setRetries(int retries) {
+		this.retries = retries;
+	}
+
+	// The QTYPE of the first question, or -1 if the response has no question.
+	public int getQType() {
+		if (header.getQDCOUNT() == 0) {
+			return -1;
 		}
+		return DnsNames.u16(dnsResponse, DnsNames.skipName(dnsResponse, 12));
+	}
+
+	public DnsRecordCursor answers(DnsRecordCursor cursor) {
+		return cursor.reset(dnsResponse, startIndex, ancount);
+	}
+
+	public DnsRecordCursor authorities(DnsRecordCursor cursor) {
+		return cursor.reset(dnsResponse, authorityIndex, nscount);
+	}
+
+	public DnsRecordCursor additionals(DnsRecordCursor cursor) {
+		return cursor.reset(dnsResponse, additionalIndex, arcount);
+	}
+
+	public DnsRecordCursor answers() {
+		return answers(new DnsRecordCursor());
+	}
+
+	public DnsRecordCursor authorities() {
+		return authorities(new DnsRecordCursor());
+	}
+
+	public DnsRecordCursor additionals() {
+		return additionals(new DnsRecordCursor());
 	}
 
 	public void printResponseOutput() {
 		System.out.println("");
-		int ancount = header.getANCOUNT();
-		int arcount = header.getARCOUNT();
 		boolean isCaseThree = header.validateRCode();
 		if (ancount <= 0 || isCaseThree) {
 			System.out.println("NOTFOUND");
 		} else {
+			boolean auth = header.getAA() == 1;
+			StringBuilder line = new StringBuilder(128);
+			DnsRecordCursor cursor = answers();
 			System.out.println("***Answer Section (" + ancount + " records)***");
-			for (DnsAnswer an : this.answers) {
-				if (!an.getTYPE().equals("OTHER"))
-					System.out.println(an.getOutput());
+			while (cursor.next()) {
+				printRecord(cursor, auth, line);
 			}
 			System.out.println("");
 			if (arcount > 0) {
 				System.out.println("***Additional Section (" + arcount + " records)***");
-				for (DnsAnswer an : this.additionals) {
-					if (!an.getTYPE().equals("OTHER"))
-						System.out.println(an.getOutput());
+				additionals(cursor);
+				while (cursor.next()) {
+					printRecord(cursor, auth, line);
 				}
 			}
 		}
 
 	}
+
+	private void printRecord(DnsRecordCursor cursor, boolean auth, StringBuilder line) {
+		line.setLength(0);
+		if (cursor.appendOutput(auth, line)) {
+			System.out.println(line);
+		}
+	}
 }
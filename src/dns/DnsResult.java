@@ -0,0 +1,50 @@
+package dns;
+
+/**
+ * The outcome of a lookup: a response, or the reason there is none. Results
+ * are immutable and can be passed between threads freely.
+ */
+public final class DnsResult {
+	private final DnsResponse response;
+	private final DnsException error;
+
+	private DnsResult(DnsResponse response, DnsException error) {
+		this.response = response;
+		this.error = error;
+	}
+
+	public static DnsResult of(DnsResponse response) {
+		return new DnsResult(response, null);
+	}
+
+	public static DnsResult failure(DnsException error) {
+		return new DnsResult(null, error);
+	}
+
+	public boolean isSuccess() {
+		return this.error == null;
+	}
+
+	// Whether the name exists but has no records of the type, or does not
+	// exist at all.
+	public boolean isNotFound() {
+		return response != null && (response.getHeader().getRCODE() == 3 || response.getAnswerCount() == 0);
+	}
+
+	// The response, or null if the lookup failed.
+	public DnsResponse getResponse() {
+		return this.response;
+	}
+
+	// The failure, or null if the lookup succeeded.
+	public DnsException getError() {
+		return this.error;
+	}
+
+	public DnsResponse getOrThrow() throws DnsException {
+		if (error != null) {
+			throw error;
+		}
+		return response;
+	}
+}
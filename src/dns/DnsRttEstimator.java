@@ -0,0 +1,74 @@
+package dns;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the round-trip time to one server and derives the retransmission
+ * timeout from it, as RFC 6298 does for TCP:
+ *
+ * <pre>
+ * first sample R:  SRTT = R, RTTVAR = R / 2
+ * later samples:   RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|
+ *                  SRTT   = 7/8 SRTT   + 1/8 R
+ * RTO = SRTT + max(G, 4 RTTVAR), clamped to [MIN_RTO, MAX_RTO]
+ * </pre>
+ *
+ * Until the first sample arrives the RTO is INITIAL_RTO. Following Karn's
+ * algorithm, callers must only report samples from queries that were not
+ * retransmitted. All times are in nanoseconds.
+ *
+ * Samples are recorded by the event loop threads of the transport's shards,
+ * one at a time under the estimator's lock; the fields are volatile so other
+ * threads can read a consistent recent value without it.
+ */
+public class DnsRttEstimator {
+	public static final long INITIAL_RTO = TimeUnit.SECONDS.toNanos(1);
+	public static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(50);
+	public static final long MAX_RTO = TimeUnit.SECONDS.toNanos(60);
+	private static final long CLOCK_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private volatile long srtt;
+	private volatile long rttvar;
+	private volatile long rto = INITIAL_RTO;
+	private volatile long samples;
+
+	public synchronized void addSample(long rtt) {
+		if (samples == 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+		samples++;
+		rto = Math.min(Math.max(srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar), MIN_RTO), MAX_RTO);
+	}
+
+	/**
+	 * The timeout for a transmission, doubled for every earlier transmission of
+	 * the same query.
+	 *
+	 * @param retries    : the number of times the query was already sent.
+	 * @param maxTimeout : the upper bound on the timeout.
+	 */
+	public long getTimeout(int retries, long maxTimeout) {
+		long timeout = rto << Math.min(retries, 30);
+		return timeout < 0 || timeout > maxTimeout ? maxTimeout : timeout;
+	}
+
+	public long getSRTT() {
+		return this.srtt;
+	}
+
+	public long getRTTVAR() {
+		return this.rttvar;
+	}
+
+	public long getRTO() {
+		return this.rto;
+	}
+
+	public long getSamples() {
+		return this.samples;
+	}
+}
@@ -0,0 +1,263 @@
+package dns;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A set of upstream servers that queries are raced across. Each query goes
+ * first to the server with the best score, which combines its smoothed RTT
+ * with its recent error rate. If that server has not answered within the
+ * hedge delay, the same query is also sent to the next best server, and so
+ * on; a server that fails outright is replaced by the next one at once. The
+ * first valid answer wins.
+ *
+ * A response with the TC bit set is asked again over TCP from the same server
+ * before it counts as an answer. A FORMERR answer to a query that carried an
+ * EDNS OPT record is asked again without one, for servers that predate EDNS.
+ *
+ * A server that fails EJECT_AFTER times in a row is ejected: it is ranked
+ * behind every healthy server for a while, and the ejection time doubles
+ * every time it is ejected again. Once the ejection time is over, one query is
+ * also sent to it as a probe; if the probe is answered the server is healthy
+ * again, otherwise it is ejected again.
+ */
+public class DnsServerPool implements DnsUpstream {
+	public static final int DEFAULT_HEDGE_DELAY = 100;
+	public static final int EJECT_AFTER = 3;
+	private static final long BASE_EJECTION = TimeUnit.SECONDS.toNanos(5);
+	private static final long MAX_EJECTION = TimeUnit.MINUTES.toNanos(5);
+
+	private final Server[] servers;
+	private final DnsUdpTransport transport;
+	private final DnsTcpTransport tcpTransport;
+	private long hedgeDelay = TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY);
+
+	public DnsServerPool(List<InetSocketAddress> addresses, DnsUdpTransport transport,
+			DnsTcpTransport tcpTransport) {
+		if (addresses.isEmpty()) {
+			throw new IllegalArgumentException("\nERROR\tAt least one DNS server is required");
+		}
+		this.transport = transport;
+		this.tcpTransport = tcpTransport;
+		this.servers = new Server[addresses.size()];
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = new Server(addresses.get(i), transport.rttFor(addresses.get(i)));
+		}
+	}
+
+	public void setHedgeDelay(int hedgeDelay) {
+		this.hedgeDelay = TimeUnit.MILLISECONDS.toNanos(hedgeDelay);
+	}
+
+	public List<Server> getServers() {
+		return Collections.unmodifiableList(Arrays.asList(servers));
+	}
+
+	/**
+	 * Race a query across the servers, best first.
+	 *
+	 * @param timeout    : the longest time to wait for each transmission, in ms.
+	 * @param maxRetries : the number of retransmissions to each server.
+	 */
+	@Override
+	public CompletableFuture<DnsResponse> query(String name, String qtype, int timeout, int maxRetries) {
+		long now = System.nanoTime();
+		List<Server> ranked = new ArrayList<>(servers.length);
+		Server probe = null;
+		for (Server server : servers) {
+			boolean ejectionOver = server.ejectedUntil != 0 && server.ejectedUntil - now <= 0;
+			if (ejectionOver && server.probing.compareAndSet(false, true)) {
+				probe = server;
+			} else {
+				ranked.add(server);
+			}
+		}
+		ranked.sort((a, b) -> Double.compare(a.score(now), b.score(now)));
+
+		Race race = new Race(ranked, name, qtype, timeout, maxRetries);
+		if (probe != null) {
+			race.launch(probe);
+		}
+		race.launchNext();
+		return race.result;
+	}
+
+	/**
+	 * Ask one server over UDP, falling back to a query without EDNS when the
+	 * server answers FORMERR, and to TCP when the answer is truncated.
+	 *
+	 * @param recursionDesired : whether to set the RD bit.
+	 */
+	static CompletableFuture<DnsResponse> exchange(DnsUdpTransport transport, DnsTcpTransport tcpTransport,
+			InetSocketAddress server, String name, String qtype, int timeout, int maxRetries,
+			boolean recursionDesired) {
+		int udpPayloadSize = transport.getUdpPayloadSize();
+		return transport.query(server, name, qtype, timeout, maxRetries, udpPayloadSize, recursionDesired)
+				.thenCompose(response -> {
+					if (udpPayloadSize > 0 && response.getHeader().getRCODE() == 1) {
+						return transport.query(server, name, qtype, timeout, maxRetries, 0, recursionDesired);
+					}
+					return CompletableFuture.completedFuture(response);
+				}).thenCompose(response -> {
+					if (response.isTruncated()) {
+						return tcpTransport.query(server, name, qtype, timeout, recursionDesired);
+					}
+					return CompletableFuture.completedFuture(response);
+				});
+	}
+
+	private final class Race {
+		final List<Server> ranked;
+		final String name;
+		final String qtype;
+		final int timeout;
+		final int maxRetries;
+		final CompletableFuture<DnsResponse> result = new CompletableFuture<>();
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger outstanding = new AtomicInteger();
+		volatile Throwable lastError;
+
+		Race(List<Server> ranked, String name, String qtype, int timeout, int maxRetries) {
+			this.ranked = ranked;
+			this.name = name;
+			this.qtype = qtype;
+			this.timeout = timeout;
+			this.maxRetries = maxRetries;
+		}
+
+		// Send the query to the next best server and arm the hedge timer.
+		void launchNext() {
+			if (result.isDone()) {
+				return;
+			}
+			int index = next.getAndIncrement();
+			if (index >= ranked.size()) {
+				return;
+			}
+			launch(ranked.get(index));
+			if (index + 1 < ranked.size()) {
+				Executor hedge = CompletableFuture.delayedExecutor(hedgeDelay, TimeUnit.NANOSECONDS);
+				hedge.execute(this::launchNext);
+			}
+		}
+
+		void launch(Server server) {
+			outstanding.incrementAndGet();
+			server.queries.increment();
+			exchange(transport, tcpTransport, server.address, name, qtype, timeout, maxRetries, true)
+					.whenComplete((response, error) -> finish(server, response, error));
+		}
+
+		void finish(Server server, DnsResponse response, Throwable error) {
+			if (error == null) {
+				int rcode = response.getHeader().getRCODE();
+				if (rcode == 2 || rcode == 5) {
+					error = new DnsException(DnsException.Reason.SERVER_FAILURE,
+							"\nERROR\tServer " + server.address + " answered with RCODE " + rcode);
+				}
+			}
+			if (error == null) {
+				server.recordSuccess();
+				result.complete(response);
+			} else {
+				server.recordFailure();
+				lastError = error;
+				// Fail over to the next server right away rather than waiting for
+				// the hedge timer.
+				launchNext();
+			}
+			if (outstanding.decrementAndGet() == 0 && !result.isDone()) {
+				result.completeExceptionally(lastError);
+			}
+		}
+	}
+
+	/**
+	 * The health of one upstream server. The error rate is an exponentially
+	 * weighted moving average updated without locking, so concurrent updates
+	 * may occasionally overwrite each other; it only steers the ranking.
+	 */
+	public static final class Server {
+		private final InetSocketAddress address;
+		private final DnsRttEstimator rtt;
+		private final LongAdder queries = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final AtomicInteger consecutiveFailures = new AtomicInteger();
+		private final AtomicBoolean probing = new AtomicBoolean();
+		private volatile double errorRate;
+		private volatile long ejectedUntil;
+		private volatile long ejection;
+		private volatile int ejections;
+
+		Server(InetSocketAddress address, DnsRttEstimator rtt) {
+			this.address = address;
+			this.rtt = rtt;
+		}
+
+		// Lower is better. Ejected servers sort after every healthy one.
+		double score(long now) {
+			double score = (rtt.getSRTT() + DnsRttEstimator.MIN_RTO) * (1 + 4 * errorRate);
+			return isEjected(now) ? Double.MAX_VALUE / 2 + score : score;
+		}
+
+		void recordSuccess() {
+			errorRate = errorRate * 0.9;
+			consecutiveFailures.set(0);
+			if (probing.get() || ejectedUntil != 0) {
+				errorRate = 0;
+				ejection = 0;
+				ejectedUntil = 0;
+				probing.set(false);
+			}
+		}
+
+		void recordFailure() {
+			failures.increment();
+			errorRate = errorRate * 0.9 + 0.1;
+			if (consecutiveFailures.incrementAndGet() >= EJECT_AFTER || probing.get()) {
+				consecutiveFailures.set(0);
+				ejection = ejection == 0 ? BASE_EJECTION : Math.min(ejection * 2, MAX_EJECTION);
+				ejectedUntil = System.nanoTime() + ejection;
+				ejections++;
+				probing.set(false);
+			}
+		}
+
+		public boolean isEjected(long now) {
+			return ejectedUntil != 0 && ejectedUntil - now > 0;
+		}
+
+		public InetSocketAddress getAddress() {
+			return this.address;
+		}
+
+		public DnsRttEstimator getRtt() {
+			return this.rtt;
+		}
+
+		public double getErrorRate() {
+			return this.errorRate;
+		}
+
+		public long getQueries() {
+			return queries.sum();
+		}
+
+		public long getFailures() {
+			return failures.sum();
+		}
+
+		public int getEjections() {
+			return this.ejections;
+		}
+	}
+}
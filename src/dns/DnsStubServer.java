@@ -0,0 +1,247 @@
+package dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A minimal DNS server for local testing and benchmarking. It answers every
+ * query on its own thread with a fixed number of records of the requested
+ * type, all under the queried name: A records 10.0.0.1, 10.0.0.2, ...; NS and
+ * MX records pointing at ns1, ns2, ... or mx1, mx2, ... under the queried name.
+ * Other types get an empty NOERROR answer.
+ *
+ * The response is built in place over the query, so answering allocates
+ * nothing. To stand in for a real server, the stub can drop a share of the
+ * queries and hold each response back for a fixed delay; delayed responses
+ * are copied and sent from a timer thread. With several threads, each has
+ * its own socket bound to the same port with SO_REUSEPORT, so that the server
+ * keeps up with a sharded client.
+ */
+public class DnsStubServer implements Closeable {
+	private final DatagramChannel[] channels;
+	private final Thread[] threads;
+	private final int answerCount;
+	private volatile int latency;
+	private volatile double loss;
+	private ScheduledExecutorService delayed;
+
+	/**
+	 * @param address     : the address to listen on; port 0 picks a free port.
+	 * @param answerCount : the number of records in each answer.
+	 */
+	public DnsStubServer(InetSocketAddress address, int answerCount) throws IOException {
+		this(address, answerCount, 1);
+	}
+
+	/**
+	 * @param threads : the number of threads answering, each on its own
+	 *                socket where SO_REUSEPORT is supported.
+	 * @see #DnsStubServer(InetSocketAddress, int)
+	 */
+	public DnsStubServer(InetSocketAddress address, int answerCount, int threads) throws IOException {
+		DatagramChannel first = DatagramChannel.open();
+		boolean reusePort = threads > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		this.channels = new DatagramChannel[reusePort ? threads : 1];
+		this.channels[0] = first;
+		try {
+			for (int i = 0; i < channels.length; i++) {
+				if (i > 0) {
+					channels[i] = DatagramChannel.open();
+				}
+				if (reusePort) {
+					channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				channels[i].bind(i == 0 ? address : getAddress());
+			}
+		} catch (IOException e) {
+			closeChannels();
+			throw e;
+		}
+		this.answerCount = answerCount;
+		this.threads = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			DatagramChannel channel = channels[i % channels.length];
+			this.threads[i] = new Thread(() -> run(channel), "dns-stub-server-" + i);
+			this.threads[i].setDaemon(true);
+			this.threads[i].start();
+		}
+	}
+
+	/**
+	 * Hold every response back for the given time.
+	 *
+	 * @param latency : the delay in ms, or 0 to answer at once.
+	 */
+	public synchronized void setLatency(int latency) {
+		if (latency > 0 && delayed == null) {
+			delayed = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread thread = new Thread(task, "dns-stub-server-delay");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		this.latency = latency;
+	}
+
+	/**
+	 * Leave the given share of the queries unanswered, chosen at random.
+	 *
+	 * @param loss : between 0 and 1.
+	 */
+	public void setLoss(double loss) {
+		if (loss < 0 || loss > 1) {
+			throw new IllegalArgumentException("\nERROR\tThe loss must be between 0 and 1");
+		}
+		this.loss = loss;
+	}
+
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) channels[0].getLocalAddress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closeChannels();
+		synchronized (this) {
+			if (delayed != null) {
+				delayed.shutdownNow();
+			}
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void closeChannels() throws IOException {
+		for (DatagramChannel channel : channels) {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+	}
+
+	private void run(DatagramChannel channel) {
+		ByteBuffer packet = DnsUdpTransport.RECEIVE_BUFFERS.acquire();
+		try {
+			while (true) {
+				packet.clear();
+				SocketAddress client = channel.receive(packet);
+				packet.flip();
+				if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss) {
+					continue;
+				}
+				if (buildResponse(packet, answerCount)) {
+					int delay = latency;
+					if (delay > 0) {
+						ByteBuffer response = ByteBuffer.allocate(packet.remaining()).put(packet).flip();
+						delayed.schedule(() -> sendLater(channel, response, client), delay, TimeUnit.MILLISECONDS);
+					} else {
+						channel.send(packet, client);
+					}
+				}
+			}
+		} catch (ClosedChannelException | RejectedExecutionException e) {
+			// Closed by close().
+		} catch (IOException e) {
+			System.out.println("\nERROR\tThe stub server failed: " + e.getMessage());
+		} finally {
+			DnsUdpTransport.RECEIVE_BUFFERS.release(packet);
+		}
+	}
+
+	private static void sendLater(DatagramChannel channel, ByteBuffer response, SocketAddress client) {
+		try {
+			channel.send(response, client);
+		} catch (IOException e) {
+			// Closed while the response was held back.
+		}
+	}
+
+	/**
+	 * Turn the query in the buffer into its response. Anything after the first
+	 * question, such as an OPT record, is dropped. The response is kept within
+	 * 512 bytes, or within the payload size of the query's OPT record; records
+	 * that do not fit are left out and the TC bit is set.
+	 *
+	 * @param packet      : the query, between position and limit. On return it
+	 *                    holds the response.
+	 * @param answerCount : the number of records to answer with.
+	 * @return false if the packet is not a query that can be answered.
+	 */
+	public static boolean buildResponse(ByteBuffer packet, int answerCount) {
+		try {
+			if (packet.remaining() < 12 || (packet.get(2) & 0x80) != 0 || DnsNames.u16(packet, 4) != 1) {
+				return false;
+			}
+			int index = DnsNames.skipName(packet, 12);
+			int qtype = DnsNames.u16(packet, index);
+			int maxSize = DnsUdpTransport.MAX_DNS_PACKET_SIZE;
+			if (DnsNames.u16(packet, 10) == 1 && packet.limit() >= index + 15 && packet.get(index + 4) == 0
+					&& DnsNames.u16(packet, index + 5) == DnsRecordCursor.TYPE_OPT) {
+				maxSize = Math.max(maxSize, DnsNames.u16(packet, index + 7));
+			}
+			packet.limit(Math.min(maxSize, packet.capacity()));
+			packet.position(index + 4);
+
+			int answers = 0;
+			boolean truncated = false;
+			for (int i = 1; i <= answerCount; i++) {
+				if (packet.remaining() < 32) {
+					truncated = true;
+					break;
+				}
+				packet.putShort((short) 0xC00C);
+				packet.putShort((short) qtype);
+				packet.putShort((short) DnsRecordCursor.CLASS_IN);
+				packet.putInt(300);
+				if (qtype == DnsRecordCursor.TYPE_A) {
+					packet.putShort((short) 4);
+					packet.putInt((10 << 24) | i);
+				} else if (qtype == DnsRecordCursor.TYPE_NS || qtype == DnsRecordCursor.TYPE_MX) {
+					boolean mx = qtype == DnsRecordCursor.TYPE_MX;
+					String label = (mx ? "mx" : "ns") + i;
+					packet.putShort((short) ((mx ? 2 : 0) + 1 + label.length() + 2));
+					if (mx) {
+						packet.putShort((short) (10 * i));
+					}
+					packet.put((byte) label.length());
+					for (int c = 0; c < label.length(); c++) {
+						packet.put((byte) label.charAt(c));
+					}
+					packet.putShort((short) 0xC00C);
+				} else {
+					packet.position(packet.position() - 10);
+					break;
+				}
+				answers++;
+			}
+
+			packet.put(2, (byte) (0x84 | (truncated ? 0x02 : 0) | (packet.get(2) & 0x01)));
+			packet.put(3, (byte) 0x80);
+			packet.putShort(6, (short) answers);
+			packet.putShort(8, (short) 0);
+			packet.putShort(10, (short) 0);
+			packet.flip();
+			return true;
+		} catch (RuntimeException e) {
+			// A truncated or malformed question, such as a reserved label type
+			// or a compression loop.
+			return false;
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package dns;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends DNS queries over TCP, for answers too large for a UDP datagram. Each
+ * server gets a small pool of persistent connections, and queries are
+ * pipelined over them as 2-byte length-prefixed messages (RFC 7766): a query
+ * is written without waiting for the answers to earlier ones, and the answers
+ * are matched back by transaction ID in whatever order the server sends them.
+ *
+ * As with DnsUdpTransport, all connection state is owned by one event loop
+ * thread. A connection that has been idle for IDLE_TIMEOUT is closed. If the
+ * server closes a connection while queries are outstanding, each of them is
+ * sent once more on a new connection.
+ */
+public class DnsTcpTransport implements Closeable {
+	public static final int MAX_CONNECTIONS_PER_SERVER = 2;
+	public static final int MAX_PIPELINED_PER_CONNECTION = 100;
+	private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+	private static final int MAX_ATTEMPTS = 2;
+
+	private final Selector selector;
+	private final Thread eventLoop;
+	private final ConcurrentLinkedQueue<PendingQuery> submissions = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed;
+	private volatile DnsMetrics metrics = DnsMetrics.disabled();
+
+	// Only touched by the event loop thread.
+	private final Map<InetSocketAddress, List<Connection>> connections = new HashMap<>();
+	private final PriorityQueue<PendingQuery> deadlines = new PriorityQueue<>(
+			(a, b) -> Long.compare(a.deadline, b.deadline));
+
+	public DnsTcpTransport() throws IOException {
+		this.selector = Selector.open();
+		this.eventLoop = new Thread(this::run, "dns-tcp-transport");
+		this.eventLoop.setDaemon(true);
+		this.eventLoop.start();
+	}
+
+	/**
+	 * Send a query over one of the server's connections and return a future
+	 * that completes with the matching response, or with a
+	 * SocketTimeoutException if none arrives within the timeout.
+	 *
+	 * @param server  : the address of the DNS server.
+	 * @param name    : the domain name to look up.
+	 * @param qtype   : the request type.
+	 * @param timeout : the time to wait for the response, in ms.
+	 */
+	public CompletableFuture<DnsResponse> query(InetSocketAddress server, String name, String qtype, int timeout) {
+		return query(server, name, qtype, timeout, true);
+	}
+
+	/**
+	 * @param recursionDesired : whether to set the RD bit.
+	 * @see #query(InetSocketAddress, String, String, int)
+	 */
+	public CompletableFuture<DnsResponse> query(InetSocketAddress server, String name, String qtype, int timeout,
+			boolean recursionDesired) {
+		DnsQueryTemplate template;
+		try {
+			template = DnsQueryTemplate.of(name, DnsQuestion.getTypeCode(qtype), recursionDesired, 0);
+		} catch (IllegalArgumentException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		ByteBuffer request = ByteBuffer.allocate(2 + template.getLength());
+		template.writeTo(request.putShort((short) template.getLength()), 0).flip();
+
+		PendingQuery query = new PendingQuery(server, metrics.server(server), request, template.getQuestion(),
+				System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(timeout));
+		submissions.add(query);
+		if (closed && submissions.remove(query)) {
+			query.future.completeExceptionally(new ClosedChannelException());
+		}
+		selector.wakeup();
+		return query.future;
+	}
+
+	// Count queries, timeouts, RCODEs and latency per server.
+	public void setMetrics(DnsMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		selector.wakeup();
+		try {
+			eventLoop.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		try {
+			while (!closed) {
+				selector.select(millisToNextDeadline());
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle((Connection) key.attachment(), key);
+				}
+				sendSubmissions();
+				expire();
+			}
+		} catch (IOException e) {
+			System.out.println("\nERROR\tThe DNS TCP transport failed: " + e.getMessage());
+		} finally {
+			PendingQuery query;
+			while ((query = submissions.poll()) != null) {
+				query.future.completeExceptionally(new ClosedChannelException());
+			}
+			for (List<Connection> pool : connections.values()) {
+				for (Connection connection : new ArrayList<>(pool)) {
+					connection.close(new ClosedChannelException(), false);
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				System.out.println("\nERROR\tFailed to close the selector");
+			}
+		}
+	}
+
+	private long millisToNextDeadline() {
+		PendingQuery next = deadlines.peek();
+		if (next == null) {
+			return connections.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMillis(IDLE_TIMEOUT);
+		}
+		return Math.max(TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime()), 1);
+	}
+
+	private void sendSubmissions() {
+		PendingQuery query;
+		while ((query = submissions.poll()) != null) {
+			if (query.future.isDone()) {
+				continue;
+			}
+			Connection connection;
+			try {
+				connection = connectionFor(query.server);
+			} catch (IOException e) {
+				if (query.stats != null) {
+					query.stats.recordFailure();
+				}
+				query.future.completeExceptionally(e);
+				continue;
+			}
+			int id;
+			do {
+				id = DnsIdTable.random(1 << 16);
+			} while (connection.outstanding.containsKey(id));
+			query.id = id;
+			query.attempts++;
+			query.request.putShort(2, (short) id);
+			connection.outstanding.put(id, query);
+			connection.writes.add(query.request.duplicate());
+			connection.lastUsed = System.nanoTime();
+			if (connection.connected) {
+				connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			if (query.attempts == 1) {
+				deadlines.add(query);
+				if (query.stats != null) {
+					query.stats.recordQuery();
+				}
+			} else if (query.stats != null) {
+				query.stats.recordRetry();
+			}
+		}
+	}
+
+	// The least loaded connection to the server, opening a new one while the
+	// pool is not full and every open one is busy.
+	private Connection connectionFor(InetSocketAddress server) throws IOException {
+		List<Connection> pool = connections.computeIfAbsent(server, s -> new ArrayList<>());
+		Connection best = null;
+		for (Connection connection : pool) {
+			if (best == null || connection.outstanding.size() < best.outstanding.size()) {
+				best = connection;
+			}
+		}
+		if (best == null || (best.outstanding.size() >= MAX_PIPELINED_PER_CONNECTION
+				&& pool.size() < MAX_CONNECTIONS_PER_SERVER)) {
+			best = new Connection(server);
+			pool.add(best);
+		}
+		return best;
+	}
+
+	private void handle(Connection connection, SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+		try {
+			if (key.isConnectable() && connection.channel.finishConnect()) {
+				connection.connected = true;
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			if (connection.connected && key.isReadable()) {
+				connection.read();
+			}
+			if (connection.connected && key.isValid() && key.isWritable()) {
+				connection.write();
+			}
+		} catch (IOException e) {
+			connection.close(e, true);
+		}
+	}
+
+	private void expire() {
+		long now = System.nanoTime();
+		PendingQuery query;
+		while ((query = deadlines.peek()) != null && query.deadline - now <= 0) {
+			deadlines.poll();
+			if (!query.future.isDone()) {
+				if (query.stats != null) {
+					query.stats.recordTimeout();
+				}
+				query.future.completeExceptionally(
+						new SocketTimeoutException("No TCP response from " + query.server));
+			}
+		}
+		for (List<Connection> pool : connections.values()) {
+			for (Connection connection : new ArrayList<>(pool)) {
+				connection.outstanding.values().removeIf(pending -> pending.future.isDone());
+				if (connection.outstanding.isEmpty() && now - connection.lastUsed > IDLE_TIMEOUT) {
+					connection.close(null, false);
+				}
+			}
+		}
+		connections.values().removeIf(List::isEmpty);
+	}
+
+	private final class Connection {
+		final InetSocketAddress server;
+		final SocketChannel channel;
+		final SelectionKey key;
+		final Map<Integer, PendingQuery> outstanding = new HashMap<>();
+		final ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+		final ByteBuffer length = ByteBuffer.allocate(2);
+		ByteBuffer message;
+		boolean connected;
+		long lastUsed = System.nanoTime();
+
+		Connection(InetSocketAddress server) throws IOException {
+			this.server = server;
+			this.channel = SocketChannel.open();
+			this.channel.configureBlocking(false);
+			this.connected = channel.connect(server);
+			this.key = channel.register(selector,
+					connected ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+		}
+
+		void write() throws IOException {
+			ByteBuffer buffer;
+			while ((buffer = writes.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					return;
+				}
+				writes.poll();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		// Read as many complete messages as are available.
+		void read() throws IOException {
+			while (true) {
+				if (message == null) {
+					if (channel.read(length) < 0) {
+						throw new EOFException();
+					}
+					if (length.hasRemaining()) {
+						return;
+					}
+					message = ByteBuffer.allocate(DnsNames.u16(length, 0));
+					length.clear();
+				}
+				if (channel.read(message) < 0) {
+					throw new EOFException();
+				}
+				if (message.hasRemaining()) {
+					return;
+				}
+				message.flip();
+				deliver(message);
+				message = null;
+				lastUsed = System.nanoTime();
+			}
+		}
+
+		void deliver(ByteBuffer data) {
+			if (data.remaining() < 12) {
+				return;
+			}
+			PendingQuery query = outstanding.get(DnsNames.u16(data, 0));
+			if (query == null || !DnsNames.questionEquals(data, query.question)) {
+				return;
+			}
+			outstanding.remove(query.id);
+			if (query.stats != null) {
+				query.stats.recordResponse(data.get(3), System.nanoTime() - query.submittedAt);
+			}
+			try {
+				query.future.complete(new DnsResponse(data));
+			} catch (RuntimeException e) {
+				if (query.stats != null) {
+					query.stats.recordFailure();
+				}
+				query.future.completeExceptionally(e);
+			}
+		}
+
+		// Close the connection. When the server went away, queries that were
+		// still waiting get one more attempt on a fresh connection.
+		void close(IOException cause, boolean retry) {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println("\nERROR\tFailed to close the socket");
+			}
+			List<Connection> pool = connections.get(server);
+			if (pool != null) {
+				pool.remove(this);
+			}
+			for (PendingQuery query : outstanding.values()) {
+				if (query.future.isDone()) {
+					continue;
+				}
+				if (retry && query.attempts < MAX_ATTEMPTS) {
+					submissions.add(query);
+				} else {
+					if (query.stats != null) {
+						query.stats.recordFailure();
+					}
+					query.future.completeExceptionally(cause != null ? cause : new ClosedChannelException());
+				}
+			}
+			outstanding.clear();
+		}
+	}
+
+	private static final class PendingQuery {
+		final InetSocketAddress server;
+		// Null when metrics are disabled.
+		final DnsMetrics.Stats stats;
+		final ByteBuffer request;
+		final byte[] question;
+		final long submittedAt;
+		final long deadline;
+		final CompletableFuture<DnsResponse> future = new CompletableFuture<>();
+		int id;
+		int attempts;
+
+		PendingQuery(InetSocketAddress server, DnsMetrics.Stats stats, ByteBuffer request, byte[] question,
+				long submittedAt, long timeout) {
+			this.server = server;
+			this.stats = stats;
+			this.request = request;
+			this.question = question;
+			this.submittedAt = submittedAt;
+			this.deadline = submittedAt + timeout;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package dns;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the metrics as "name value" lines, one per value of the snapshot,
+ * every period and once more when closed. With a period of 0 the metrics are
+ * only written by {@link #dump()} and on close.
+ */
+public class DnsTextExporter implements DnsMetricsExporter {
+	private final PrintStream out;
+	private final long period;
+	private ScheduledExecutorService timer;
+	private volatile DnsMetrics metrics;
+
+	/**
+	 * @param out    : where to write the metrics.
+	 * @param period : the time between two dumps, in ms.
+	 */
+	public DnsTextExporter(PrintStream out, long period) {
+		this.out = out;
+		this.period = period;
+	}
+
+	@Override
+	public void start(DnsMetrics metrics) {
+		this.metrics = metrics;
+		if (period > 0) {
+			timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "dns-metrics-dump");
+				thread.setDaemon(true);
+				return thread;
+			});
+			timer.scheduleAtFixedRate(this::dump, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void dump() {
+		DnsMetrics metrics = this.metrics;
+		if (metrics == null) {
+			return;
+		}
+		StringBuilder text = new StringBuilder(4096);
+		for (Map.Entry<String, Long> entry : metrics.snapshot().entrySet()) {
+			text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+		synchronized (out) {
+			out.print(text);
+			out.flush();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+		dump();
+	}
+}
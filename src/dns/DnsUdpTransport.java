@@ -0,0 +1,626 @@
+package dns;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends DNS queries over non-blocking UDP channels and matches the responses
+ * back to their callers. Any number of threads can submit queries. The
+ * transport is split into shards, by default one per core, and a query is
+ * handed to the shard picked by a hash of its name. Each shard has its own
+ * event loop thread, which owns the shard's sockets, their outstanding-query
+ * tables, its timeout queue and its buffers, so shards share nothing on the
+ * path of a query and the queue needs no locking. Shards are started the
+ * first time a query is routed to them.
+ *
+ * Each query gets a random transaction ID from the outstanding-query table of
+ * its socket (see DnsIdTable). A response is only accepted if it arrives on
+ * that socket from the address the query was sent to, its ID belongs to an
+ * outstanding query, and its question section is the question that was
+ * asked. Anything else is dropped and counted as a stray. With
+ * {@link #setSourcePorts(int)}, queries are spread at random across a pool of
+ * sockets, each bound to its own ephemeral port, so that a spoofed answer has
+ * to guess the port as well as the ID. A query that gets no answer is
+ * retransmitted with the same ID until it runs out of retries, and then fails
+ * with a SocketTimeoutException. The time to wait before each retransmission
+ * adapts to the measured round-trip time of its server (see
+ * DnsRttEstimator), doubling on every retry, and never exceeds the query's
+ * configured timeout.
+ *
+ * Queries advertise an EDNS(0) UDP payload size (RFC 6891) so that answers up
+ * to that size arrive in one datagram instead of being truncated at 512
+ * bytes. Queries are kept as DnsQueryTemplates and copied, with their ID, into
+ * a pooled direct send buffer for each transmission. Datagrams are received
+ * into a direct buffer taken from a shared pool, and only the bytes of a
+ * matched response are copied out.
+ */
+public class DnsUdpTransport implements Closeable {
+	public static final int MAX_DNS_PACKET_SIZE = 512;
+	public static final int DEFAULT_UDP_PAYLOAD_SIZE = 1232;
+	public static final int MAX_UDP_PAYLOAD_SIZE = 4096;
+	static final DnsBufferPool RECEIVE_BUFFERS = new DnsBufferPool(MAX_UDP_PAYLOAD_SIZE, true, 16);
+	static final DnsBufferPool SEND_BUFFERS = new DnsBufferPool(DnsQueryTemplate.MAX_SIZE, true, 16);
+	// Per socket; the rest of the ID space keeps random IDs cheap to draw.
+	private static final int MAX_OUTSTANDING = 3 << 14;
+	public static final int DEFAULT_SHARDS = Runtime.getRuntime().availableProcessors();
+
+	private final Map<InetSocketAddress, DnsRttEstimator> rtts = new ConcurrentHashMap<>();
+	private volatile boolean closed;
+	private volatile int udpPayloadSize = DEFAULT_UDP_PAYLOAD_SIZE;
+	private volatile DnsMetrics metrics = DnsMetrics.disabled();
+	private volatile int sourcePorts = 1;
+	private volatile boolean adaptiveTimeouts = true;
+	private final LongAdder strays = new LongAdder();
+	// Every shard started so far, by index; replaced under the lock to add one.
+	private volatile Shard[] shards = new Shard[0];
+	private volatile int shardCount;
+
+	public DnsUdpTransport() throws IOException {
+		this(DEFAULT_SHARDS);
+	}
+
+	/**
+	 * @param shards : the number of shards to spread queries across.
+	 */
+	public DnsUdpTransport(int shards) throws IOException {
+		setShards(shards);
+		// Fail here rather than on the first query if no socket can be opened.
+		startShard(0);
+	}
+
+	/**
+	 * Send a query advertising the transport's EDNS payload size.
+	 *
+	 * @see #query(InetSocketAddress, String, String, int, int, int)
+	 */
+	public CompletableFuture<DnsResponse> query(InetSocketAddress server, String name, String qtype, int timeout,
+			int maxRetries) {
+		return query(server, name, qtype, timeout, maxRetries, udpPayloadSize);
+	}
+
+	/**
+	 * Send a query and return a future that completes with the matching
+	 * response. The query's template is looked up, or encoded, on the calling
+	 * thread; the transaction ID is assigned by the event loop when the query
+	 * is sent.
+	 *
+	 * @param server         : the address of the DNS server.
+	 * @param name           : the domain name to look up.
+	 * @param qtype          : the request type.
+	 * @param timeout        : the longest time to wait for each transmission, in
+	 *                       ms.
+	 * @param maxRetries     : the number of retransmissions after the first one.
+	 * @param udpPayloadSize : the EDNS payload size to advertise, or 0 to send
+	 *                       the query without an OPT record.
+	 */
+	public CompletableFuture<DnsResponse> query(InetSocketAddress server, String name, String qtype, int timeout,
+			int maxRetries, int udpPayloadSize) {
+		return query(server, name, qtype, timeout, maxRetries, udpPayloadSize, true);
+	}
+
+	/**
+	 * @param recursionDesired : whether to set the RD bit. Iterative lookups
+	 *                         clear it to ask authoritative servers directly.
+	 * @see #query(InetSocketAddress, String, String, int, int, int)
+	 */
+	public CompletableFuture<DnsResponse> query(InetSocketAddress server, String name, String qtype, int timeout,
+			int maxRetries, int udpPayloadSize, boolean recursionDesired) {
+		DnsQueryTemplate template;
+		try {
+			template = DnsQueryTemplate.of(name, DnsQuestion.getTypeCode(qtype), recursionDesired, udpPayloadSize);
+		} catch (IllegalArgumentException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		Shard shard;
+		try {
+			shard = shardFor(name);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		PendingQuery query = new PendingQuery(server, rttFor(server), metrics.server(server), template,
+				TimeUnit.MILLISECONDS.toNanos(timeout), maxRetries);
+		// Taken first: the event loop lets go of it once the query is answered.
+		CompletableFuture<DnsResponse> future = query.future;
+		shard.submit(query);
+		return future;
+	}
+
+	/**
+	 * Set the EDNS payload size advertised by queries that do not give their
+	 * own. 0 disables EDNS; other sizes are kept between 512 and
+	 * MAX_UDP_PAYLOAD_SIZE, the size of the receive buffer.
+	 */
+	public void setUdpPayloadSize(int udpPayloadSize) {
+		this.udpPayloadSize = udpPayloadSize <= 0 ? 0
+				: Math.max(MAX_DNS_PACKET_SIZE, Math.min(udpPayloadSize, MAX_UDP_PAYLOAD_SIZE));
+	}
+
+	public int getUdpPayloadSize() {
+		return this.udpPayloadSize;
+	}
+
+	// Count queries, retries, timeouts, RCODEs and latency per server.
+	public void setMetrics(DnsMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Spread the new queries of each shard at random across this many
+	 * sockets. The sockets are opened as they are needed; lowering the count
+	 * leaves the extra ones to finish their outstanding queries.
+	 */
+	public void setSourcePorts(int sourcePorts) {
+		if (sourcePorts < 1) {
+			throw new IllegalArgumentException("\nERROR\tThe number of source ports must be at least 1");
+		}
+		this.sourcePorts = sourcePorts;
+		for (Shard shard : shards) {
+			if (shard != null) {
+				shard.selector.wakeup();
+			}
+		}
+	}
+
+	public int getSourcePorts() {
+		return this.sourcePorts;
+	}
+
+	/**
+	 * By default each transmission waits for the retransmission timeout of its
+	 * server, which follows the measured round-trip times. Without adaptive
+	 * timeouts every transmission waits for the full timeout of its query, as
+	 * a load generator wants so that slow answers are measured, not dropped.
+	 */
+	public void setAdaptiveTimeouts(boolean adaptiveTimeouts) {
+		this.adaptiveTimeouts = adaptiveTimeouts;
+	}
+
+	// The number of datagrams dropped because they did not match a query.
+	public long getStrayResponses() {
+		return strays.sum();
+	}
+
+	// The round-trip time statistics of a server, created on first use.
+	public DnsRttEstimator rttFor(InetSocketAddress server) {
+		DnsRttEstimator rtt = rtts.get(server);
+		return rtt != null ? rtt : rtts.computeIfAbsent(server, s -> new DnsRttEstimator());
+	}
+
+	/**
+	 * Route new queries across this many shards. Lowering the count leaves the
+	 * extra shards to finish their outstanding queries.
+	 */
+	public void setShards(int shards) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("\nERROR\tThe number of shards must be at least 1");
+		}
+		this.shardCount = shards;
+	}
+
+	public int getShards() {
+		return this.shardCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		Shard[] started;
+		synchronized (this) {
+			closed = true;
+			started = shards;
+		}
+		for (Shard shard : started) {
+			if (shard != null) {
+				shard.close();
+			}
+		}
+	}
+
+	private Shard shardFor(String name) throws IOException {
+		int count = shardCount;
+		int index = count == 1 ? 0 : Math.floorMod(name.hashCode(), count);
+		Shard[] started = shards;
+		Shard shard = index < started.length ? started[index] : null;
+		return shard != null ? shard : startShard(index);
+	}
+
+	private synchronized Shard startShard(int index) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		Shard[] started = shards;
+		if (index < started.length && started[index] != null) {
+			return started[index];
+		}
+		Shard shard = new Shard(index);
+		started = Arrays.copyOf(started, Math.max(started.length, index + 1));
+		started[index] = shard;
+		shards = started;
+		return shard;
+	}
+
+	// An event loop thread with its own sockets, timeout queue and buffers.
+	private final class Shard implements Runnable {
+		final Selector selector;
+		final Thread eventLoop;
+		final ConcurrentLinkedQueue<PendingQuery> submissions = new ConcurrentLinkedQueue<>();
+
+		// Only touched by the event loop thread.
+		final List<Socket> sockets = new ArrayList<>();
+		// Answered queries are taken out of the deadline queue at once; queries
+		// cancelled by the caller are skipped when they reach its head.
+		final DeadlineQueue deadlines = new DeadlineQueue();
+		final ByteBuffer receiveBuffer = RECEIVE_BUFFERS.acquire();
+		final ByteBuffer sendBuffer = SEND_BUFFERS.acquire();
+
+		Shard(int index) throws IOException {
+			this.selector = Selector.open();
+			try {
+				this.sockets.add(new Socket(selector));
+			} catch (IOException e) {
+				selector.close();
+				throw e;
+			}
+			this.eventLoop = new Thread(this, "dns-udp-transport-" + index);
+			this.eventLoop.setDaemon(true);
+			this.eventLoop.start();
+		}
+
+		void submit(PendingQuery query) {
+			submissions.add(query);
+			if (closed && submissions.remove(query)) {
+				query.future.completeExceptionally(new ClosedChannelException());
+			}
+			selector.wakeup();
+		}
+
+		void close() {
+			selector.wakeup();
+			try {
+				eventLoop.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!closed) {
+					selector.select(millisToNextDeadline());
+					openSockets();
+					sendSubmissions();
+					for (SelectionKey key : selector.selectedKeys()) {
+						receiveResponses((Socket) key.attachment());
+					}
+					selector.selectedKeys().clear();
+					expireQueries();
+				}
+			} catch (IOException e) {
+				System.out.println("\nERROR\tThe DNS transport failed: " + e.getMessage());
+			} finally {
+				failAll();
+				RECEIVE_BUFFERS.release(receiveBuffer);
+				SEND_BUFFERS.release(sendBuffer);
+				for (Socket socket : sockets) {
+					socket.close();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					System.out.println("\nERROR\tFailed to close the socket");
+				}
+			}
+		}
+
+		// 0 makes select block until a packet or a wakeup arrives.
+		private long millisToNextDeadline() {
+			PendingQuery next = deadlines.peek();
+			if (next == null) {
+				return 0;
+			}
+			long millis = TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime());
+			return Math.max(millis, 1);
+		}
+
+		// Open sockets until there are as many as the source port count.
+		private void openSockets() {
+			try {
+				while (sockets.size() < sourcePorts) {
+					sockets.add(new Socket(selector));
+				}
+			} catch (IOException e) {
+				// Keep using the sockets that are open.
+				System.out.println("\nERROR\tFailed to open a UDP socket: " + e.getMessage());
+				sourcePorts = sockets.size();
+			}
+		}
+
+		private void sendSubmissions() {
+			PendingQuery query;
+			while ((query = submissions.poll()) != null) {
+				int count = Math.min(sourcePorts, sockets.size());
+				Socket socket = sockets.get(count == 1 ? 0 : DnsIdTable.random(count));
+				int id = socket.outstanding.add(query);
+				if (id < 0) {
+					if (query.stats != null) {
+						query.stats.recordFailure();
+					}
+					query.future.completeExceptionally(
+							new IllegalStateException("\nERROR\tToo many outstanding DNS queries"));
+					continue;
+				}
+				query.socket = socket;
+				query.id = id;
+				transmit(query);
+			}
+		}
+
+		private void transmit(PendingQuery query) {
+			try {
+				sendBuffer.clear();
+				query.socket.channel.send(query.template.writeTo(sendBuffer, query.id).flip(), query.server);
+				query.sentAt = System.nanoTime();
+				query.deadline = query.sentAt
+						+ (adaptiveTimeouts ? query.rtt.getTimeout(query.retries, query.timeout) : query.timeout);
+				deadlines.add(query);
+				if (query.retries == 0) {
+					query.firstSentAt = query.sentAt;
+				}
+				if (query.stats != null) {
+					if (query.retries == 0) {
+						query.stats.recordQuery();
+					} else {
+						query.stats.recordRetry();
+					}
+				}
+			} catch (IOException e) {
+				query.socket.outstanding.remove(query.id, query);
+				if (query.stats != null) {
+					query.stats.recordFailure();
+				}
+				query.future.completeExceptionally(e);
+			}
+		}
+
+		private void receiveResponses(Socket socket) throws IOException {
+			while (true) {
+				receiveBuffer.clear();
+				InetSocketAddress from = (InetSocketAddress) socket.channel.receive(receiveBuffer);
+				if (from == null) {
+					return;
+				}
+				receiveBuffer.flip();
+				PendingQuery query = receiveBuffer.remaining() < 12 ? null
+						: socket.outstanding.get(DnsNames.u16(receiveBuffer, 0));
+				if (query == null || !from.equals(query.server)
+						|| !DnsNames.questionEquals(receiveBuffer, query.template.getQuestion())
+						|| !socket.outstanding.remove(query.id, query)) {
+					strays.increment();
+					continue;
+				}
+				long now = System.nanoTime();
+				if (query.retries == 0) {
+					// Karn's algorithm: a retransmitted query gives an ambiguous sample.
+					query.rtt.addSample(now - query.sentAt);
+				}
+				if (query.stats != null) {
+					query.stats.recordResponse(receiveBuffer.get(3), now - query.firstSentAt);
+				}
+
+				byte[] data = new byte[receiveBuffer.remaining()];
+				receiveBuffer.get(data);
+				try {
+					DnsResponse response = new DnsResponse(ByteBuffer.wrap(data));
+					response.setRetries(query.retries);
+					query.future.complete(response);
+				} catch (RuntimeException e) {
+					if (query.stats != null) {
+						query.stats.recordFailure();
+					}
+					query.future.completeExceptionally(e);
+				}
+				deadlines.remove(query);
+				query.release();
+			}
+		}
+
+		private void expireQueries() {
+			long now = System.nanoTime();
+			PendingQuery query;
+			while ((query = deadlines.peek()) != null && query.deadline - now <= 0) {
+				deadlines.poll();
+				if (query.future.isDone()) {
+					// Cancelled by the caller.
+					query.socket.outstanding.remove(query.id, query);
+				} else if (query.retries < query.maxRetries) {
+					query.retries++;
+					transmit(query);
+				} else {
+					query.socket.outstanding.remove(query.id, query);
+					if (query.stats != null) {
+						query.stats.recordTimeout();
+					}
+					query.future.completeExceptionally(
+							new SocketTimeoutException("No response after " + (query.retries + 1) + " attempts"));
+				}
+			}
+		}
+
+		private void failAll() {
+			PendingQuery query;
+			while ((query = submissions.poll()) != null) {
+				query.future.completeExceptionally(new ClosedChannelException());
+			}
+			for (Socket socket : sockets) {
+				socket.outstanding.drain(pending -> pending.future.completeExceptionally(new ClosedChannelException()));
+			}
+			deadlines.clear();
+		}
+	}
+
+	// A channel bound to an ephemeral port, and the queries sent from it.
+	private static final class Socket {
+		final DatagramChannel channel;
+		final DnsIdTable<PendingQuery> outstanding = new DnsIdTable<>(MAX_OUTSTANDING);
+
+		Socket(Selector selector) throws IOException {
+			this.channel = DatagramChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.bind(null);
+				channel.register(selector, SelectionKey.OP_READ, this);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println("\nERROR\tFailed to close the socket");
+			}
+		}
+	}
+
+	private static final class PendingQuery {
+		final InetSocketAddress server;
+		final DnsRttEstimator rtt;
+		// Null when metrics are disabled.
+		final DnsMetrics.Stats stats;
+		final long timeout;
+		final int maxRetries;
+		DnsQueryTemplate template;
+		CompletableFuture<DnsResponse> future = new CompletableFuture<>();
+		Socket socket;
+		int id;
+		int retries;
+		long firstSentAt;
+		long sentAt;
+		long deadline;
+		// The position in the deadline queue, or -1.
+		int heapIndex = -1;
+
+		PendingQuery(InetSocketAddress server, DnsRttEstimator rtt, DnsMetrics.Stats stats,
+				DnsQueryTemplate template, long timeout, int maxRetries) {
+			this.server = server;
+			this.rtt = rtt;
+			this.stats = stats;
+			this.template = template;
+			this.timeout = timeout;
+			this.maxRetries = maxRetries;
+		}
+
+		// Let go of what an answered query no longer needs, so a stale
+		// reference to the query does not keep its response alive.
+		void release() {
+			template = null;
+			future = null;
+		}
+	}
+
+	/**
+	 * The queries of a shard in order of deadline: a binary heap in which
+	 * each query knows its position, so that an answered query can be taken
+	 * out of the middle in O(log n) instead of waiting for its deadline.
+	 */
+	private static final class DeadlineQueue {
+		private PendingQuery[] heap = new PendingQuery[64];
+		private int size;
+
+		PendingQuery peek() {
+			return size == 0 ? null : heap[0];
+		}
+
+		void add(PendingQuery query) {
+			if (size == heap.length) {
+				heap = Arrays.copyOf(heap, size * 2);
+			}
+			heap[size] = query;
+			siftUp(size++);
+		}
+
+		PendingQuery poll() {
+			PendingQuery head = peek();
+			if (head != null) {
+				remove(head);
+			}
+			return head;
+		}
+
+		// Take a query out of the queue; does nothing if it is not in it.
+		void remove(PendingQuery query) {
+			int index = query.heapIndex;
+			if (index < 0) {
+				return;
+			}
+			query.heapIndex = -1;
+			PendingQuery last = heap[--size];
+			heap[size] = null;
+			if (index < size) {
+				heap[index] = last;
+				siftDown(index);
+				siftUp(last.heapIndex);
+			}
+		}
+
+		void clear() {
+			for (int i = 0; i < size; i++) {
+				heap[i].heapIndex = -1;
+				heap[i] = null;
+			}
+			size = 0;
+		}
+
+		private void siftUp(int index) {
+			PendingQuery query = heap[index];
+			while (index > 0) {
+				int parent = (index - 1) >>> 1;
+				if (heap[parent].deadline - query.deadline <= 0) {
+					break;
+				}
+				place(heap[parent], index);
+				index = parent;
+			}
+			place(query, index);
+		}
+
+		private void siftDown(int index) {
+			PendingQuery query = heap[index];
+			while (index < size >>> 1) {
+				int child = 2 * index + 1;
+				if (child + 1 < size && heap[child + 1].deadline - heap[child].deadline < 0) {
+					child++;
+				}
+				if (query.deadline - heap[child].deadline <= 0) {
+					break;
+				}
+				place(heap[child], index);
+				index = child;
+			}
+			place(query, index);
+		}
+
+		private void place(PendingQuery query, int index) {
+			heap[index] = query;
+			query.heapIndex = index;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package dns;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where a DnsResolver sends the questions it cannot answer from its caches:
+ * a pool of recursive servers, or its own iterative resolution.
+ */
+interface DnsUpstream {
+	/**
+	 * @param name       : the domain name to look up.
+	 * @param qtype      : the request type.
+	 * @param timeout    : the longest time to wait for each transmission, in ms.
+	 * @param maxRetries : the number of retransmissions to each server.
+	 */
+	CompletableFuture<DnsResponse> query(String name, String qtype, int timeout, int maxRetries);
+}
@@ -0,0 +1,44 @@
+package dns;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A typed lookup API. Failures come back as values in the DnsResult rather
+ * than as exceptions or printed messages, and every lookup has a deadline
+ * budget that covers all of its retries.
+ *
+ * Implementations are thread-safe and keep no per-call sockets or threads,
+ * and the blocking call parks the caller without holding a monitor, so it can
+ * be called from any number of threads, virtual threads included.
+ */
+public interface Resolver extends Closeable {
+	/**
+	 * Look up a name without blocking.
+	 *
+	 * @param name   : the domain name to look up.
+	 * @param qtype  : the request type.
+	 * @param budget : the total time the lookup may take, retries included.
+	 * @return a future that always completes normally, with the result.
+	 */
+	CompletableFuture<DnsResult> resolveAsync(String name, String qtype, Duration budget);
+
+	/**
+	 * Look up a name and wait for the result, at most for the budget.
+	 *
+	 * @see #resolveAsync(String, String, Duration)
+	 */
+	default DnsResult resolve(String name, String qtype, Duration budget) {
+		try {
+			return resolveAsync(name, qtype, budget).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return DnsResult.failure(new DnsException(DnsException.Reason.INTERRUPTED,
+					"\nERROR\tInterrupted while resolving " + name, e));
+		} catch (ExecutionException e) {
+			return DnsResult.failure(DnsException.from(e));
+		}
+	}
+}